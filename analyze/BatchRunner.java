@@ -0,0 +1,289 @@
+package analyze;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.JMException;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.measure.ResultsTable;
+import util.MappedTiffStack;
+import util.Parameters;
+
+/**
+ * Runs the peak fitter and the particle tracker on a batch of movies without
+ * any dialogs, from the command line:
+ *
+ * java -cp ij.jar:plugins analyze.BatchRunner parameters.txt movies [output]
+ *
+ * The parameter file holds the same keys as the preferences of the plugins,
+ * for example PeakFitter.threshold=6 or ParticleTracker.maxStepSize=4, keys
+ * that are left out take their value from the ImageJ preferences (see
+ * {@link Parameters}). Movies is a
+ * directory (all .tif files in it are processed) or a glob such as
+ * data/2017-*.tif. For every movie a _localizations.csv and a _tracks.csv file
+ * are written to the output directory (by default the directory of the movie),
+ * or .loc files (see {@link LocalizationFile}) if BatchRunner.format=loc.
+ * The fit metrics of a movie (see {@link FitMetrics}) are written to a
+ * _metrics.csv file and published through JMX under the name of the movie.
+ *
+ * With BatchRunner.streaming=true peaks are linked while they are fitted by a
+ * {@link StreamingTracker} and finished trajectories are written to a
+ * _tracks.loc file right away, so that long movies can be tracked without
+ * holding all localizations in memory. No _localizations file is written.
+ * The trajectories are those of greedy tracking with the same look ahead and
+ * max step size (optimal linking and the motion model are not used), only
+ * the order in which they are written differs.
+ *
+ * BatchRunner.movies sets the number of movies that are processed at the same
+ * time (by default 2), the threads of the peak fitter are divided over them.
+ * Each movie is read by its own thread from a memory mapped tiff stack, so
+ * movies are uncompressed TIFF or BigTIFF files.
+ */
+public class BatchRunner {
+	
+	private final int movies;
+	private final int threads;
+	private final File output;
+	private boolean isBinary = Parameters.get("BatchRunner.format", "csv").equals("loc");
+	private boolean isStreaming = Parameters.getBoolean("BatchRunner.streaming", false);
+	
+	public BatchRunner(int movies, int threads, File output) {
+		this.movies = Math.max(movies, 1);
+		this.threads = Math.max(threads, 1);
+		this.output = output;
+	}
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		
+		if (args.length < 2) {
+			System.err.println("usage: BatchRunner parameters movies [output]");
+			System.exit(2);
+		}
+		
+		Properties parameters = new Properties();
+		InputStream in = new FileInputStream(args[0]);
+		
+		try {
+			parameters.load(in);
+		}
+		finally {
+			in.close();
+		}
+		
+		// the plugins read their settings through Parameters, which looks up
+		// the parameter file before the ImageJ properties and preferences
+		Parameters.setAll(parameters);
+		
+		int movies = Parameters.getInt("BatchRunner.movies", 2);
+		File output = args.length > 2 ? new File(args[2]) : null;
+		
+		BatchRunner runner = new BatchRunner(movies, Prefs.getThreads(), output);
+		int failures = runner.run(getMovies(args[1]));
+		
+		System.exit(failures == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * Returns the .tif and .tiff files in a directory, or the files that match
+	 * a glob, sorted by name.
+	 */
+	public static List<Path> getMovies(String pattern) throws IOException {
+		
+		Path path = Paths.get(pattern);
+		Path directory;
+		String glob;
+		
+		if (Files.isDirectory(path)) {
+			directory = path;
+			glob = "*.{tif,tiff,TIF,TIFF}";
+		}
+		else {
+			directory = path.getParent() == null ? Paths.get(".") : path.getParent();
+			glob = path.getFileName().toString();
+		}
+		
+		List<Path> movies = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob);
+		
+		try {
+			for (Path movie: stream)
+				movies.add(movie);
+		}
+		finally {
+			stream.close();
+		}
+		
+		Collections.sort(movies);
+		
+		return movies;
+	}
+	
+	/**
+	 * Processes the movies and returns the number of movies that failed.
+	 */
+	public int run(List<Path> paths) throws InterruptedException {
+		
+		ExecutorService executor = Executors.newFixedThreadPool(movies);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		
+		// a movie only uses the threads of the fitter it is entitled to
+		final int fitThreads = Math.max(threads / Math.min(movies, Math.max(paths.size(), 1)), 1);
+		
+		for (final Path path: paths) {
+			
+			futures.add(executor.submit(new Callable<Void>() {
+				
+				@Override
+				public Void call() throws Exception {
+					process(path, fitThreads);
+					return null;
+				}
+				
+			}));
+			
+		}
+		
+		executor.shutdown();
+		
+		int failures = 0;
+		
+		for (int i = 0; i < paths.size(); i++) {
+			
+			try {
+				futures.get(i).get();
+			}
+			catch (ExecutionException e) {
+				IJ.log(paths.get(i) + ": " + e.getCause());
+				failures++;
+			}
+			
+		}
+		
+		IJ.log((paths.size() - failures) + " of " + paths.size() + " movies processed");
+		
+		return failures;
+	}
+	
+	/**
+	 * Fits and tracks the peaks of a single movie.
+	 */
+	public void process(Path path, int threads) throws IOException, InterruptedException, ExecutionException, JMException {
+		
+		long start = System.currentTimeMillis();
+		
+		String name = path.getFileName().toString();
+		name = name.substring(0, name.lastIndexOf('.') < 0 ? name.length() : name.lastIndexOf('.'));
+		
+		File directory = output != null ? output : path.toAbsolutePath().getParent().toFile();
+		
+		MappedTiffStack stack = MappedTiffStack.open(path.toString());
+		
+		PeakFitter fitter = new PeakFitter();
+		ResultsTable localizations = new ResultsTable();
+		
+		fitter.getMetrics().register(name);
+		
+		if (isStreaming) {
+			
+			TrajectoryWriter writer = new TrajectoryWriter(new File(directory, name + "_tracks.loc").getPath());
+			StreamingTracker tracker = new StreamingTracker(writer);
+			
+			try {
+				fitter.fitStack(stack, threads, tracker);
+				tracker.finish();
+			}
+			finally {
+				writer.close();
+			}
+			
+			fitter.getMetrics().save(new File(directory, name + "_metrics.csv").getPath());
+			
+			IJ.log(path + ": " + stack.getSize() + " frames, found peaks : " + fitter.getFoundPeaks()
+					+ " tracked peaks : " + writer.rows + " (" + (System.currentTimeMillis() - start) / 1000.0 + " s)");
+			
+			return;
+		}
+		
+		fitter.fitStack(stack, threads, localizations);
+		fitter.getMetrics().save(new File(directory, name + "_metrics.csv").getPath());
+		
+		LocalizationTable table = LocalizationTable.fromResultsTable(localizations);
+		save(table, new File(directory, name + "_localizations"));
+		
+		// tracking sorts the table and removes peaks that are not part of a trajectory
+		new ParticleTracker().track(table);
+		save(table, new File(directory, name + "_tracks"));
+		
+		IJ.log(path + ": " + stack.getSize() + " frames, found peaks : " + fitter.getFoundPeaks()
+				+ " fitted peaks : " + localizations.getCounter() + " (" + (System.currentTimeMillis() - start) / 1000.0 + " s)");
+	}
+	
+	private void save(LocalizationTable table, File file) throws IOException {
+		
+		if (isBinary) {
+			LocalizationFile.write(table, file.getPath() + ".loc");
+		}
+		else {
+			ResultsTable results = new ResultsTable();
+			table.toResultsTable(results);
+			results.saveAs(file.getPath() + ".csv");
+		}
+		
+	}
+	
+	/**
+	 * Appends finished trajectories to a .loc file, which is created with the
+	 * columns of the first trajectories.
+	 */
+	private static class TrajectoryWriter implements StreamingTracker.TrajectorySink {
+		
+		private final String path;
+		private LocalizationFile.Writer writer;
+		public int rows = 0;
+		
+		public TrajectoryWriter(String path) {
+			this.path = path;
+		}
+		
+		@Override
+		public void add(LocalizationTable trajectories) {
+			
+			try {
+				
+				if (writer == null)
+					writer = new LocalizationFile.Writer(path, trajectories);
+				
+				writer.write(trajectories);
+				rows += trajectories.size();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			
+		}
+		
+		public void close() throws IOException {
+			if (writer != null)
+				writer.close();
+		}
+		
+	}
+	
+}
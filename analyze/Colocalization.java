@@ -4,6 +4,7 @@ import java.awt.Polygon;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.measure.ResultsTable;
@@ -40,13 +41,15 @@ public class Colocalization implements PlugIn {
 		
 		table = new ResultsTable();
 		
+		PeakFitterContext fitter = new PeakFitterContext(Prefs.getInt("PeakFitter.sigma", 1));
+		
 		for (int i = 0; i < polygon.npoints; i++) {
 			ip.setRoi(polygon.xpoints[i] - fittingRadius, polygon.ypoints[i] - fittingRadius, fittingWidth, fittingWidth);
 			
 			double[] p = new double[]{Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN};
 			double[] e = new double[6];
 			
-			double rSquared = PeakFitter.fitPeak(ip, p, e);
+			double rSquared = fitter.fitPeak(ip, p, e);
 			
 			xpoints[i] = p[2];
 			ypoints[i] = p[3];
@@ -21,6 +21,8 @@ import ij.plugin.filter.Analyzer;
 import ij.plugin.filter.PlugInFilter;
 import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.IntColumn;
 
 /**
  * Corrects movies with drift. This plugin requires that the user has selected
@@ -54,6 +56,8 @@ public class DriftCorrection implements PlugInFilter, ActionListener {
 			Prefs.getDouble("PeakFitter.maxErrorSigmaY", 1),
 	};
 	
+	private PeakFitterContext fitter = new PeakFitterContext(Prefs.getInt("PeakFitter.sigma", 1));
+	
 	private int degreeOfPolynomial = Prefs.getInt("DriftCorrection.degreeOfPolynomial", 2);
 	private boolean showFit = Prefs.getBoolean("DriftCorrection.showFit", true);
 	private boolean correctResults = Prefs.getBoolean("DriftCorrection.correctResults", false);
@@ -85,7 +89,7 @@ public class DriftCorrection implements PlugInFilter, ActionListener {
 				
 				rois[selection].setPosition(0);	// make sure that this selection is global
 				ip.setRoi(rois[selection]);
-				PeakFitter.fitPeak(ip, p, e);
+				fitter.fitPeak(ip, p, e);
 				
 				boolean valid = true;
 				
@@ -315,16 +319,31 @@ public class DriftCorrection implements PlugInFilter, ActionListener {
 			return;
 		}
 		
-		for (int i = 0; i < table.getCounter(); i++) {
-			double slice = table.getValue("slice", i);
-			double x = table.getValue("x", i) - polynomial(slice - 1, xParameters);
-			double y = table.getValue("y", i) - polynomial(slice - 1, yParameters);
+		LocalizationTable localizations = LocalizationTable.fromResultsTable(table);
+		correctResults(localizations);
+		localizations.toResultsTable(table);
+		
+		table.show("Results");
+	}
+	
+	/**
+	 * Subtracts the fitted drift from the x and y positions of all peaks.
+	 */
+	public void correctResults(LocalizationTable table) {
+		
+		IntColumn slices = table.getIntColumn("slice");
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		
+		for (int i = 0; i < table.size(); i++) {
+			int slice = slices.get(i);
+			double x = xs.get(i) - polynomial(slice - 1, xParameters);
+			double y = ys.get(i) - polynomial(slice - 1, yParameters);
 			
-			table.setValue("x", i, x);
-			table.setValue("y", i, y);
+			xs.set(i, x);
+			ys.set(i, y);
 		}
 		
-		table.show("Results");
 	}
 	
 	private void correctImage() {
@@ -0,0 +1,269 @@
+package analyze;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts where the time of finding and fitting peaks goes and why fits are
+ * rejected. The time of each stage is summed over all threads, so with
+ * multiple threads the stages add up to more than the wall clock time.
+ * Frames and peaks per second are based on the wall clock time between the
+ * start of the first frame and the end of the last frame.
+ *
+ * All counters can be updated by multiple threads at the same time. The
+ * metrics can be saved as a csv file and are available through JMX after
+ * {@link #register}, for example in JConsole or VisualVM.
+ */
+public class FitMetrics implements FitMetricsMXBean {
+	
+	public enum Stage {
+		FILTER, THRESHOLD, FIND, FIT, SINK
+	}
+	
+	/**
+	 * The reason a fit is rejected: the peak is outside all rois, a parameter
+	 * or error is not a number or the error of a parameter exceeds its
+	 * maximum. The order of the maximum errors is the order of the
+	 * parameters.
+	 */
+	public enum Rejection {
+		OUTSIDE_ROI, NAN, MAX_ERROR_BASELINE, MAX_ERROR_HEIGHT, MAX_ERROR_X, MAX_ERROR_Y, MAX_ERROR_SIGMA_X, MAX_ERROR_SIGMA_Y
+	}
+	
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray rejections = new AtomicLongArray(Rejection.values().length);
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong foundPeaks = new AtomicLong();
+	private final AtomicLong fittedPeaks = new AtomicLong();
+	private final AtomicLong fits = new AtomicLong();
+	private final AtomicLong iterations = new AtomicLong();
+	private final AtomicLong maxIterationsReached = new AtomicLong();
+	private final AtomicLong start = new AtomicLong();
+	private final AtomicLong end = new AtomicLong();
+	
+	/**
+	 * Adds the time since start (as obtained from System.nanoTime) to a stage
+	 * and returns the current time, so that consecutive stages can be timed
+	 * with a single call each.
+	 */
+	public long addTime(Stage stage, long start) {
+		
+		long now = System.nanoTime();
+		stageNanos.addAndGet(stage.ordinal(), now - start);
+		
+		return now;
+	}
+	
+	/**
+	 * Marks the start of a frame and returns the current time.
+	 */
+	public long startFrame() {
+		
+		long now = System.nanoTime();
+		start.compareAndSet(0, now);
+		
+		return now;
+	}
+	
+	/**
+	 * Marks the end of a frame in which peaks were found, of which fitted
+	 * peaks passed all checks.
+	 */
+	public void endFrame(int peaks, int fitted) {
+		
+		frames.incrementAndGet();
+		foundPeaks.addAndGet(peaks);
+		fittedPeaks.addAndGet(fitted);
+		
+		long now = System.nanoTime();
+		long last = end.get();
+		
+		while (now > last && !end.compareAndSet(last, now))
+			last = end.get();
+	}
+	
+	/**
+	 * Counts a solved fit and the number of iterations it took.
+	 */
+	public void addFit(int fitIterations) {
+		
+		fits.incrementAndGet();
+		iterations.addAndGet(fitIterations);
+		
+		if (fitIterations >= LevenbergMarquardt.maxIterations)
+			maxIterationsReached.incrementAndGet();
+	}
+	
+	public void reject(Rejection reason) {
+		rejections.incrementAndGet(reason.ordinal());
+	}
+	
+	@Override
+	public long getFrames() {
+		return frames.get();
+	}
+	
+	@Override
+	public long getFoundPeaks() {
+		return foundPeaks.get();
+	}
+	
+	@Override
+	public long getFittedPeaks() {
+		return fittedPeaks.get();
+	}
+	
+	@Override
+	public double getSeconds() {
+		return start.get() == 0 ? 0 : Math.max(end.get() - start.get(), 0) / 1e9;
+	}
+	
+	@Override
+	public double getFramesPerSecond() {
+		return getSeconds() == 0 ? 0 : frames.get() / getSeconds();
+	}
+	
+	@Override
+	public double getPeaksPerSecond() {
+		return getSeconds() == 0 ? 0 : fittedPeaks.get() / getSeconds();
+	}
+	
+	@Override
+	public long getFits() {
+		return fits.get();
+	}
+	
+	@Override
+	public double getMeanIterations() {
+		return fits.get() == 0 ? 0 : (double)iterations.get() / fits.get();
+	}
+	
+	@Override
+	public long getMaxIterationsReached() {
+		return maxIterationsReached.get();
+	}
+	
+	public double getStageSeconds(Stage stage) {
+		return stageNanos.get(stage.ordinal()) / 1e9;
+	}
+	
+	public long getRejections(Rejection reason) {
+		return rejections.get(reason.ordinal());
+	}
+	
+	@Override
+	public Map<String, Double> getStageSeconds() {
+		
+		Map<String, Double> seconds = new LinkedHashMap<String, Double>();
+		
+		for (Stage stage: Stage.values())
+			seconds.put(stage.name().toLowerCase(Locale.US), getStageSeconds(stage));
+		
+		return seconds;
+	}
+	
+	@Override
+	public Map<String, Long> getRejections() {
+		
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		
+		for (Rejection reason: Rejection.values())
+			counts.put(reason.name().toLowerCase(Locale.US), getRejections(reason));
+		
+		return counts;
+	}
+	
+	@Override
+	public void reset() {
+		
+		for (int i = 0; i < stageNanos.length(); i++)
+			stageNanos.set(i, 0);
+		
+		for (int i = 0; i < rejections.length(); i++)
+			rejections.set(i, 0);
+		
+		frames.set(0);
+		foundPeaks.set(0);
+		fittedPeaks.set(0);
+		fits.set(0);
+		iterations.set(0);
+		maxIterationsReached.set(0);
+		start.set(0);
+		end.set(0);
+	}
+	
+	/**
+	 * Returns all metrics by name, in the order in which they are saved.
+	 */
+	public Map<String, Number> getMetrics() {
+		
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+		
+		metrics.put("frames", getFrames());
+		metrics.put("found_peaks", getFoundPeaks());
+		metrics.put("fitted_peaks", getFittedPeaks());
+		metrics.put("seconds", getSeconds());
+		metrics.put("frames_per_second", getFramesPerSecond());
+		metrics.put("peaks_per_second", getPeaksPerSecond());
+		metrics.put("fits", getFits());
+		metrics.put("mean_iterations", getMeanIterations());
+		metrics.put("max_iterations_reached", getMaxIterationsReached());
+		
+		for (Map.Entry<String, Double> entry: getStageSeconds().entrySet())
+			metrics.put(entry.getKey() + "_seconds", entry.getValue());
+		
+		for (Map.Entry<String, Long> entry: getRejections().entrySet())
+			metrics.put("rejected_" + entry.getKey(), entry.getValue());
+		
+		return metrics;
+	}
+	
+	/**
+	 * Saves the metrics as a csv file with a metric and a value column.
+	 */
+	public void save(String path) throws IOException {
+		
+		PrintWriter writer = new PrintWriter(new FileWriter(path));
+		
+		try {
+			
+			writer.println("metric,value");
+			
+			for (Map.Entry<String, Number> entry: getMetrics().entrySet())
+				writer.println(entry.getKey() + "," + entry.getValue());
+			
+		}
+		finally {
+			writer.close();
+		}
+		
+	}
+	
+	/**
+	 * Registers the metrics with the platform MBean server as
+	 * analyze:type=FitMetrics,name=name, replacing the metrics that were
+	 * registered with the same name before.
+	 */
+	public void register(String name) throws JMException {
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("analyze:type=FitMetrics,name=" + ObjectName.quote(name));
+		
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		
+		server.registerMBean(this, objectName);
+	}
+	
+}
@@ -0,0 +1,23 @@
+package analyze;
+
+import java.util.Map;
+
+/**
+ * The metrics of {@link FitMetrics} as they are published through JMX.
+ */
+public interface FitMetricsMXBean {
+	
+	public long getFrames();
+	public long getFoundPeaks();
+	public long getFittedPeaks();
+	public double getSeconds();
+	public double getFramesPerSecond();
+	public double getPeaksPerSecond();
+	public long getFits();
+	public double getMeanIterations();
+	public long getMaxIterationsReached();
+	public Map<String, Double> getStageSeconds();
+	public Map<String, Long> getRejections();
+	public void reset();
+	
+}
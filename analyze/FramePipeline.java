@@ -0,0 +1,201 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Fits the frames of a stack as a stream. A single thread reads the frames
+ * one by one (for a virtual stack this is where they are read from disk) into
+ * a queue of at most queueDepth frames, from which the workers take them. When
+ * the queue is full the reader waits for the workers, so no more than
+ * queueDepth + threads + 1 frames are held in memory, however long the stack.
+ * The fitted peaks of each frame are passed on to a sink in slice order as soon
+ * as all preceding frames are done. The sink is called by one worker at a
+ * time outside the lock on the pending frames, so that the other workers can
+ * hand in their frames while it runs.
+ */
+public class FramePipeline {
+	
+	public interface FrameFitter {
+		
+		/**
+		 * Finds and fits the peaks of a frame and adds them to fits. Called by
+		 * multiple threads at the same time.
+		 */
+		public void fit(ImageProcessor ip, int slice, LocalizationBuffer fits);
+		
+	}
+	
+	public interface LocalizationSink {
+		
+		/**
+		 * Receives the fitted peaks of a frame. Called for one frame at a time,
+		 * in slice order.
+		 */
+		public void add(int slice, LocalizationBuffer fits);
+		
+	}
+	
+	// marks the end of the stack, one is queued for every worker
+	private static final Frame END = new Frame(0, null);
+	
+	private final ImageStack stack;
+	private final int queueDepth;
+	private final int threads;
+	
+	// fitted frames that wait for a preceding frame before they can be passed on
+	private final Map<Integer, LocalizationBuffer> pending = new HashMap<Integer, LocalizationBuffer>();
+	private int nextSlice;
+	
+	// set while a worker passes frames on to the sink
+	private boolean isEmitting;
+	
+	public FramePipeline(ImageStack stack, int queueDepth, int threads) {
+		this.stack = stack;
+		this.queueDepth = Math.max(queueDepth, 1);
+		this.threads = Math.max(threads, 1);
+	}
+	
+	/**
+	 * Fits all frames of the stack and blocks until the last frame is passed
+	 * on to the sink. If the reader, the fitter or the sink fails, all threads
+	 * are stopped and the exception is rethrown as the cause of an
+	 * ExecutionException.
+	 */
+	public void run(final FrameFitter fitter, final LocalizationSink sink) throws InterruptedException, ExecutionException {
+		
+		final BlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(queueDepth);
+		
+		synchronized (pending) {
+			pending.clear();
+			nextSlice = 1;
+			isEmitting = false;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+		
+		try {
+			
+			completion.submit(new Callable<Void>() {
+				
+				@Override
+				public Void call() throws InterruptedException {
+					
+					for (int slice = 1; slice <= stack.getSize(); slice++)
+						queue.put(new Frame(slice, stack.getProcessor(slice)));
+					
+					for (int i = 0; i < threads; i++)
+						queue.put(END);
+					
+					return null;
+				}
+				
+			});
+			
+			for (int i = 0; i < threads; i++) {
+				
+				completion.submit(new Callable<Void>() {
+					
+					@Override
+					public Void call() throws InterruptedException {
+						
+						for (Frame frame = queue.take(); frame != END; frame = queue.take()) {
+							
+							LocalizationBuffer fits = new LocalizationBuffer();
+							fitter.fit(frame.ip, frame.slice, fits);
+							
+							emit(frame.slice, fits, sink);
+						}
+						
+						return null;
+					}
+					
+				});
+				
+			}
+			
+			// wait for the reader and all workers, but stop at the first failure
+			for (int i = 0; i < threads + 1; i++)
+				completion.take().get();
+			
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		
+	}
+	
+	/**
+	 * Adds a fitted frame to the pending frames and passes the frames that are
+	 * ready on to the sink, unless another worker is already doing so, in
+	 * which case that worker passes on this frame as well.
+	 */
+	private void emit(int slice, LocalizationBuffer fits, LocalizationSink sink) {
+		
+		synchronized (pending) {
+			
+			pending.put(slice, fits);
+			
+			if (isEmitting)
+				return;
+			
+			isEmitting = true;
+		}
+		
+		List<LocalizationBuffer> ready = new ArrayList<LocalizationBuffer>();
+		
+		while (true) {
+			
+			int firstSlice;
+			
+			synchronized (pending) {
+				
+				firstSlice = nextSlice;
+				
+				for (fits = pending.remove(nextSlice); fits != null; fits = pending.remove(nextSlice)) {
+					ready.add(fits);
+					nextSlice++;
+				}
+				
+				if (ready.isEmpty()) {
+					isEmitting = false;
+					return;
+				}
+				
+			}
+			
+			for (int i = 0; i < ready.size(); i++)
+				sink.add(firstSlice + i, ready.get(i));
+			
+			ready.clear();
+		}
+		
+	}
+	
+	private static class Frame {
+		
+		public final int slice;
+		public final ImageProcessor ip;
+		
+		public Frame(int slice, ImageProcessor ip) {
+			this.slice = slice;
+			this.ip = ip;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,169 @@
+package analyze;
+
+import java.awt.Rectangle;
+
+/**
+ * Levenberg-Marquardt model of a 2 dimensional Gaussian point spread function:
+ * 
+ * f(x,y) = baseline + height * exp(-((x-x0)^2/(2*sigma_x^2) + (y-y0)^2/(2*sigma_y^2)))
+ * 
+ * The parameters are {baseline, height, x0, y0, sigma_x, sigma_y} for an
+ * elliptical Gaussian (as used by the peak fitter) or {baseline, height, x0,
+ * y0, sigma} for a symmetric Gaussian (as used by the single peak fitter).
+ * 
+ * Because the exponential is the product of a term that only depends on x and
+ * a term that only depends on y, the model is evaluated on a window of pixels
+ * with one exponential per column and one per row instead of one per pixel.
+ */
+public class GaussianPsfModel extends LevenbergMarquardt {
+	
+	@Override
+	public double getValue(double[] x, double[] p) {
+		
+		double sx = p[4];
+		double sy = p[p.length == 6 ? 5 : 4];
+		double dx = x[0] - p[2];
+		double dy = x[1] - p[3];
+		
+		return p[0] + p[1] * Math.exp(-((dx * dx) / (2 * sx * sx) + (dy * dy) / (2 * sy * sy)));
+	}
+
+	@Override
+	public void getGradient(double[] x, double[] p, double[] dyda) {
+		
+		double sx = p[4];
+		double sy = p[p.length == 6 ? 5 : 4];
+		double dx = x[0] - p[2];
+		double dy = x[1] - p[3];
+		
+		dyda[0] = 1;
+		dyda[1] = Math.exp(-((dx * dx) / (2 * sx * sx) + (dy * dy) / (2 * sy * sy)));
+		dyda[2] = (p[1] * dyda[1] * dx) / (sx * sx);
+		dyda[3] = (p[1] * dyda[1] * dy) / (sy * sy);
+		
+		if (p.length == 6) {
+			dyda[4] = (p[1] * dyda[1] * dx * dx) / (sx * sx * sx);
+			dyda[5] = (p[1] * dyda[1] * dy * dy) / (sy * sy * sy);
+		}
+		else {
+			dyda[4] = (p[1] * dyda[1] * (dx * dx + dy * dy)) / (sx * sx * sx);
+		}
+		
+	}
+	
+	@Override
+	public void evaluate(double[] xs, int dimensions, int n, double[] p, double[] values, double[] jacobian, Workspace workspace) {
+		
+		if (dimensions != 2 || n == 0) {
+			super.evaluate(xs, dimensions, n, p, values, jacobian, workspace);
+			return;
+		}
+		
+		// the points should lie on a grid of whole pixels
+		double xMin = xs[0];
+		double yMin = xs[n];
+		double xMax = xMin;
+		double yMax = yMin;
+		
+		for (int i = 0; i < n; i++) {
+			
+			double x = xs[i];
+			double y = xs[n + i];
+			
+			if (x != Math.rint(x) || y != Math.rint(y)) {
+				super.evaluate(xs, dimensions, n, p, values, jacobian, workspace);
+				return;
+			}
+			
+			if (x < xMin) xMin = x;
+			if (x > xMax) xMax = x;
+			if (y < yMin) yMin = y;
+			if (y > yMax) yMax = y;
+		}
+		
+		int width = (int)(xMax - xMin) + 1;
+		int height = (int)(yMax - yMin) + 1;
+		
+		if (width + height > 2 * n) {
+			super.evaluate(xs, dimensions, n, p, values, jacobian, workspace);
+			return;
+		}
+		
+		double[] terms = getTerms(xMin, width, yMin, height, p, workspace);
+		
+		for (int i = 0; i < n; i++)
+			evaluate(p, terms, (int)(xs[i] - xMin), width + (int)(xs[n + i] - yMin), i, values, jacobian);
+		
+	}
+	
+	@Override
+	public void evaluate(Rectangle window, double[] p, double[] values, double[] jacobian, Workspace workspace) {
+		
+		double[] terms = getTerms(window.x, window.width, window.y, window.height, p, workspace);
+		
+		for (int i = 0, row = 0; row < window.height; row++) {
+			for (int column = 0; column < window.width; column++, i++)
+				evaluate(p, terms, column, window.width + row, i, values, jacobian);
+		}
+		
+	}
+	
+	/**
+	 * Determines the terms of width columns starting at x and height rows
+	 * starting at y, in the buffer of the workspace: the columns come first,
+	 * followed by the rows.
+	 */
+	private static double[] getTerms(double x, int width, double y, int height, double[] p, Workspace workspace) {
+		
+		double[] terms = workspace.getBuffer((width + height) * 3);
+		
+		getTerms(x, width, p[2], p[4], terms, 0);
+		getTerms(y, height, p[3], p[p.length == 6 ? 5 : 4], terms, width);
+		
+		return terms;
+	}
+	
+	/**
+	 * Determines the exponential, first and second derivative terms for
+	 * length consecutive columns (or rows) starting at origin, stored as
+	 * {e, g, h} triplets from triplet offset on.
+	 */
+	private static void getTerms(double origin, int length, double mu, double sigma, double[] terms, int offset) {
+		
+		for (int i = 0; i < length; i++) {
+			double d = origin + i - mu;
+			int k = (offset + i) * 3;
+			terms[k] = Math.exp(-(d * d) / (2 * sigma * sigma));
+			terms[k + 1] = d / (sigma * sigma);
+			terms[k + 2] = (d * d) / (sigma * sigma * sigma);
+		}
+		
+	}
+	
+	private static void evaluate(double[] p, double[] terms, int column, int row, int i, double[] values, double[] jacobian) {
+		
+		double e = terms[column * 3] * terms[row * 3];
+		
+		values[i] = p[0] + p[1] * e;
+		
+		if (jacobian != null) {
+			
+			int j = i * p.length;
+			double he = p[1] * e;
+			
+			jacobian[j] = 1;
+			jacobian[j + 1] = e;
+			jacobian[j + 2] = he * terms[column * 3 + 1];
+			jacobian[j + 3] = he * terms[row * 3 + 1];
+			
+			if (p.length == 6) {
+				jacobian[j + 4] = he * terms[column * 3 + 2];
+				jacobian[j + 5] = he * terms[row * 3 + 2];
+			}
+			else {
+				jacobian[j + 4] = he * (terms[column * 3 + 2] + terms[row * 3 + 2]);
+			}
+		}
+	}
+	
+}
@@ -1,5 +1,7 @@
 package analyze;
 
+import java.awt.Rectangle;
+
 /**
  * 
  * 
@@ -11,7 +13,163 @@ public abstract class LevenbergMarquardt {
 	public static final int maxIterations = 100;
 	public final double precision = 1e-6;
 	
+	/**
+	 * Holds the matrices that are needed while solving, so that they do not
+	 * have to be allocated for each fit. A workspace may only be used by one
+	 * thread at a time. The matrices are stored row by row in flat arrays and
+	 * grow when a fit with more parameters is solved.
+	 */
+	public static class Workspace {
+		
+		private double[] alpha = new double[0];
+		private double[] beta = new double[0];
+		private double[] covar = new double[0];
+		private double[] factor = new double[0];
+		private double[] dyda = new double[0];
+		private double[] newParameters = new double[0];
+		private double[] values = new double[0];
+		private double[] jacobian = new double[0];
+		private double[] point = new double[0];
+		private double[] buffer = new double[0];
+		private double[] data = new double[0];
+		private boolean[] mask = new boolean[0];
+		private int iterations = 0;
+		
+		public Workspace() {
+			
+		}
+		
+		public Workspace(int numberOfParameters, int numberOfPoints) {
+			ensureCapacity(numberOfParameters, numberOfPoints);
+		}
+		
+		/**
+		 * Returns the number of iterations of the last fit solved with this
+		 * workspace.
+		 */
+		public int getIterations() {
+			return iterations;
+		}
+		
+		private void ensureCapacity(int numberOfParameters, int numberOfPoints) {
+			
+			if (dyda.length < numberOfParameters) {
+				alpha = new double[numberOfParameters * numberOfParameters];
+				beta = new double[numberOfParameters];
+				covar = new double[numberOfParameters * numberOfParameters];
+				factor = new double[numberOfParameters * numberOfParameters];
+				dyda = new double[numberOfParameters];
+				newParameters = new double[numberOfParameters];
+			}
+			
+			if (values.length < numberOfPoints)
+				values = new double[numberOfPoints];
+			
+			if (jacobian.length < numberOfPoints * numberOfParameters)
+				jacobian = new double[numberOfPoints * numberOfParameters];
+			
+		}
+		
+		/**
+		 * Returns a scratch array of at least length elements for a model,
+		 * for example for terms that many points share while it is evaluated.
+		 * Its contents are not kept between evaluations.
+		 */
+		public double[] getBuffer(int length) {
+			
+			if (buffer.length < length)
+				buffer = new double[length];
+			
+			return buffer;
+		}
+		
+		/**
+		 * Returns an array of at least length elements for the caller to hold
+		 * the data of a fit (the y values), so that fitting many windows of
+		 * the same size allocates nothing. It is not used by the solver.
+		 */
+		public double[] getData(int length) {
+			
+			if (data.length < length)
+				data = new double[length];
+			
+			return data;
+		}
+		
+		/**
+		 * Returns an array of at least length elements for the caller to hold
+		 * the mask of a fit, in the same way as {@link #getData}.
+		 */
+		public boolean[] getMask(int length) {
+			
+			if (mask.length < length)
+				mask = new boolean[length];
+			
+			return mask;
+		}
+		
+		/**
+		 * Returns an array for the coordinates of a single point.
+		 */
+		private double[] getPoint(int dimensions) {
+			
+			if (point.length < dimensions)
+				point = new double[dimensions];
+			
+			return point;
+		}
+		
+	}
+	
+	// used by the convenience solve method, so that each thread reuses its own workspace
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+		
+	};
+	
 	public double solve(double[][] x, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda) {
+		return solve(x, y, s, n, parameters, vary, error, lambda, workspaces.get());
+	}
+	
+	public double solve(double[][] x, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda, Workspace workspace) {
+		return solve(x, null, 0, null, null, y, s, n, parameters, vary, error, lambda, workspace);
+	}
+	
+	/**
+	 * Same as the other solve methods, but the coordinates are stored as a
+	 * structure of arrays: coordinate k of point i is xs[k * n + i]. The
+	 * model is evaluated with
+	 * {@link #evaluate(double[], int, int, double[], double[], double[], Workspace)}.
+	 */
+	public double solve(double[] xs, int dimensions, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda) {
+		return solve(null, xs, dimensions, null, null, y, s, n, parameters, vary, error, lambda, workspaces.get());
+	}
+	
+	public double solve(double[] xs, int dimensions, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda, Workspace workspace) {
+		return solve(null, xs, dimensions, null, null, y, s, n, parameters, vary, error, lambda, workspace);
+	}
+	
+	/**
+	 * Same as the other solve methods, but the points are the pixels of a
+	 * window in row by row order: point i has the coordinates
+	 * (window.x + i % window.width, window.y + i / window.width). Points for
+	 * which mask is false (e.g. saturated pixels) are ignored, mask may be
+	 * null. The model is evaluated with
+	 * {@link #evaluate(Rectangle, double[], double[], double[], Workspace)}.
+	 */
+	public double solve(Rectangle window, boolean[] mask, double[] y, double[] s, double[] parameters, boolean[] vary, double[] error, double lambda) {
+		return solve(window, mask, y, s, parameters, vary, error, lambda, workspaces.get());
+	}
+	
+	public double solve(Rectangle window, boolean[] mask, double[] y, double[] s, double[] parameters, boolean[] vary, double[] error, double lambda, Workspace workspace) {
+		return solve(null, null, 0, window, mask, y, s, window.width * window.height, parameters, vary, error, lambda, workspace);
+	}
+	
+	private double solve(double[][] x, double[] xs, int dimensions, Rectangle window, boolean[] mask, double[] y, double[] s, int n, double[] parameters, boolean[] vary, double[] error, double lambda, Workspace workspace) {
 		
 		// determine the number of parameters that can vary
 		int numberOfParameters = 0;
@@ -21,66 +179,83 @@ public abstract class LevenbergMarquardt {
 				numberOfParameters++;
 		}
 		
-		double[][] alpha = new double[numberOfParameters][numberOfParameters];
-		double[][] beta = new double[numberOfParameters][1];
-		double[] dyda = new double[parameters.length];
-		double[] newParameters = new double[parameters.length];
+		workspace.ensureCapacity(parameters.length, n);
+		
+		double[] alpha = workspace.alpha;
+		double[] beta = workspace.beta;
+		double[] covar = workspace.covar;
+		double[] factor = workspace.factor;
+		double[] dyda = workspace.dyda;
+		double[] newParameters = workspace.newParameters;
+		double[] values = workspace.values;
+		double[] jacobian = workspace.jacobian;
+		int m = numberOfParameters;
+		int p = parameters.length;
 		
 		double sumOfSquaresBefore = 0;
 		double sumOfSquaresAfter = 0;
+		int iterations;
 		
-		for (int iterations = 1; iterations <= maxIterations; iterations++) {
+		for (iterations = 1; iterations <= maxIterations; iterations++) {
 			
 			// initialize matrices
-			for (int i = 0; i < numberOfParameters; i++) {
-				for (int j = 0; j < numberOfParameters; j++)
-					alpha[i][j] = 0;
-				beta[i][0] = 0;
+			for (int i = 0; i < m; i++) {
+				for (int j = 0; j < m; j++)
+					alpha[i * m + j] = 0;
+				beta[i] = 0;
 			}
 			
 			// determine initial sum of squares
 			sumOfSquaresBefore = 0;
 			
+			evaluate(x, xs, dimensions, window, n, parameters, values, jacobian, workspace);
+			
 			for (int i = 0; i < n; i++) {
 				
-				double residual = (y[i] - getValue(x[i], parameters));
+				if (mask != null && !mask[i])
+					continue;
+				
+				double residual = (y[i] - values[i]);
 				
 				if (s != null && s[i] != 0)
 					residual /= s[i];
 				
 				sumOfSquaresBefore += residual * residual;
 				
-				getGradient(x[i], parameters, dyda);
-				
-				for (int j = 0, k = 0; j < parameters.length; j++) {
+				for (int j = 0, k = 0; j < p; j++) {
 					if (vary == null || vary[j])
-						dyda[k++] = dyda[j];
+						dyda[k++] = jacobian[i * p + j];
 				}
 				
-				for (int j = 0; j < numberOfParameters; j++) {
+				for (int j = 0; j < m; j++) {
 					
 					if (s != null && s[i] != 0)
 						dyda[j] /= s[i];
 					
 					for (int k = 0; k <= j; k++)
-						alpha[j][k] += dyda[j] * dyda[k];
+						alpha[j * m + k] += dyda[j] * dyda[k];
 					
-					beta[j][0] += dyda[j] * residual;
+					beta[j] += dyda[j] * residual;
 				}
 				
 			}
 			
 			// fill in symmetric side
-			for (int i = 0; i < numberOfParameters; i++) {
-				for (int j = i + 1; j < numberOfParameters; j++)
-					alpha[i][j] = alpha[j][i];
+			for (int i = 0; i < m; i++) {
+				for (int j = i + 1; j < m; j++)
+					alpha[i * m + j] = alpha[j * m + i];
 			}
 			
 			// include damping factor
-			for (int i = 0; i < numberOfParameters; i++)
-				alpha[i][i] *= 1 + lambda;
+			for (int i = 0; i < m; i++)
+				alpha[i * m + i] *= 1 + lambda;
 			
-			gaussJordan(alpha, beta);
+			// the damped matrix is symmetric positive definite unless the fit is
+			// degenerate, in which case Gauss-Jordan elimination is used instead
+			if (cholesky(alpha, factor, m))
+				choleskySolve(factor, beta, m);
+			else
+				gaussJordan(alpha, beta, m, 1);
 			
 			// determine new sum of squares
 			sumOfSquaresAfter = 0;
@@ -90,11 +265,17 @@ public abstract class LevenbergMarquardt {
 				newParameters[i] = parameters[i];
 				
 				if (vary == null || vary[i])
-					newParameters[i] += beta[j++][0];
+					newParameters[i] += beta[j++];
 			}
 			
+			evaluate(x, xs, dimensions, window, n, newParameters, values, null, workspace);
+			
 			for (int i = 0; i < n; i++) {
-				double residual = (y[i] - getValue(x[i], newParameters));
+				
+				if (mask != null && !mask[i])
+					continue;
+				
+				double residual = (y[i] - values[i]);
 				
 				if (s != null && s[i] != 0)
 					residual /= s[i];
@@ -120,49 +301,69 @@ public abstract class LevenbergMarquardt {
 				break;
 		}
 		
-		double[][] covar = new double[numberOfParameters][numberOfParameters];
+		workspace.iterations = Math.min(iterations, maxIterations);
 		
 		// initialize alpha matrix
-		for (int i = 0; i < numberOfParameters; i++) {
-			for (int j = 0; j < numberOfParameters; j++)
-				alpha[i][j] = 0;
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++) {
+				alpha[i * m + j] = 0;
+				covar[i * m + j] = 0;
+			}
 			
-			covar[i][i] = 1;	// covar matrix is set to identity matrix
+			covar[i * m + i] = 1;	// covar matrix is set to identity matrix
 		}
 		
 		// determine alpha
+		evaluate(x, xs, dimensions, window, n, parameters, values, jacobian, workspace);
+		
 		for (int i = 0; i < n; i++) {
 			
-			getGradient(x[i], parameters, dyda);
+			if (mask != null && !mask[i])
+				continue;
 			
-			for (int j = 0, k = 0; j < parameters.length; j++) {
+			for (int j = 0, k = 0; j < p; j++) {
 				if (vary == null || vary[j])
-					dyda[k++] = dyda[j];
+					dyda[k++] = jacobian[i * p + j];
 			}
 			
-			for (int j = 0; j < numberOfParameters; j++) {
+			for (int j = 0; j < m; j++) {
 				
 				if (s != null && s[i] != 0)
 					dyda[j] /= s[i];
 				
 				for (int k = 0; k <= j; k++)
-					alpha[j][k] += dyda[j] * dyda[k];
+					alpha[j * m + k] += dyda[j] * dyda[k];
 			}
 			
 		}
 		
 		// fill in symmetric side
-		for (int i = 0; i < numberOfParameters; i++) {
-			for (int j = i + 1; j < numberOfParameters; j++)
-				alpha[i][j] = alpha[j][i];
+		for (int i = 0; i < m; i++) {
+			for (int j = i + 1; j < m; j++)
+				alpha[i * m + j] = alpha[j * m + i];
 		}
 		
-		// invert alpha
-		gaussJordan(alpha, covar);
+		// only the diagonal of the inverse of alpha is needed
+		if (cholesky(alpha, factor, m))
+			choleskyInverseDiagonal(factor, covar, m);
+		else
+			gaussJordan(alpha, covar, m, m);
 
+		// the number of points that take part in the fit
+		int points = n;
+		
+		if (mask != null) {
+			for (int i = 0; i < n; i++) {
+				if (!mask[i])
+					points--;
+			}
+		}
+		
 		for (int i = 0, j = 0; i < parameters.length; i++) {
-			if (vary == null || vary[i])
-				error[i] = Math.sqrt(covar[j][j++] * sumOfSquaresAfter / (n - numberOfParameters));
+			if (vary == null || vary[i]) {
+				error[i] = Math.sqrt(covar[j * m + j] * sumOfSquaresAfter / (points - m));
+				j++;
+			}
 			else
 				error[i] = 0;
 		}
@@ -173,6 +374,9 @@ public abstract class LevenbergMarquardt {
 		
 		for (int i = 0; i < n; i++) {
 			
+			if (mask != null && !mask[i])
+				continue;
+			
 			double ssq = s == null ? 1 : s[i] * s[i];
 			mean += y[i] / ssq;
 			w += 1 / ssq;
@@ -182,21 +386,121 @@ public abstract class LevenbergMarquardt {
 		
 		double sst = 0;
 		for (int i = 0; i < n; i++) {
+			
+			if (mask != null && !mask[i])
+				continue;
+			
 			double ssq = s == null ? 1 : s[i] * s[i];
 			double deviation = y[i] - mean;
 			sst += (deviation * deviation) / ssq;
 		}
 		
-		double rSq =  1 - (sumOfSquaresAfter / (n - numberOfParameters)) / (sst / (n - 1));
+		double rSq =  1 - (sumOfSquaresAfter / (points - m)) / (sst / (points - 1));
 		//rSquared = rSq;
 		//sumOfSquares = sumOfSquaresAfter;
 		
 		return rSq;
 	}
 	
-	public void gaussJordan(double[][] left, double[][] right) {
-		int n = left.length;
-		int rCols = right[0].length;
+	/**
+	 * Determines the Cholesky factorization a = L * L^T of a symmetric matrix
+	 * with n x n elements and stores L in the lower triangle of l. The matrix
+	 * a is not changed.
+	 * 
+	 * @return false if the matrix is not positive definite
+	 */
+	public static boolean cholesky(double[] a, double[] l, int n) {
+		
+		for (int j = 0; j < n; j++) {
+			
+			double d = a[j * n + j];
+			
+			for (int k = 0; k < j; k++)
+				d -= l[j * n + k] * l[j * n + k];
+			
+			if (!(d > 0))	// also catches NaN
+				return false;
+			
+			d = Math.sqrt(d);
+			l[j * n + j] = d;
+			
+			for (int i = j + 1; i < n; i++) {
+				
+				double sum = a[i * n + j];
+				
+				for (int k = 0; k < j; k++)
+					sum -= l[i * n + k] * l[j * n + k];
+				
+				l[i * n + j] = sum / d;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Solves L * L^T * x = b by forward and back substitution, the solution
+	 * is stored in b.
+	 */
+	public static void choleskySolve(double[] l, double[] b, int n) {
+		
+		for (int i = 0; i < n; i++) {
+			
+			double sum = b[i];
+			
+			for (int k = 0; k < i; k++)
+				sum -= l[i * n + k] * b[k];
+			
+			b[i] = sum / l[i * n + i];
+		}
+		
+		for (int i = n - 1; i >= 0; i--) {
+			
+			double sum = b[i];
+			
+			for (int k = i + 1; k < n; k++)
+				sum -= l[k * n + i] * b[k];
+			
+			b[i] = sum / l[i * n + i];
+		}
+	}
+	
+	/**
+	 * Determines the diagonal of (L * L^T)^-1 and stores it on the diagonal
+	 * of inverse. Element j is the squared norm of column j of L^-1, which is
+	 * built column by column in the lower triangle of inverse.
+	 */
+	public static void choleskyInverseDiagonal(double[] l, double[] inverse, int n) {
+		
+		for (int j = 0; j < n; j++) {
+			
+			double diagonal = 1 / l[j * n + j];
+			double norm = diagonal * diagonal;
+			
+			inverse[j * n + j] = diagonal;
+			
+			for (int i = j + 1; i < n; i++) {
+				
+				double sum = 0;
+				
+				for (int k = j; k < i; k++)
+					sum -= l[i * n + k] * inverse[k * n + j];
+				
+				inverse[i * n + j] = sum / l[i * n + i];
+				norm += inverse[i * n + j] * inverse[i * n + j];
+			}
+			
+			inverse[j * n + j] = norm;
+		}
+	}
+	
+	/**
+	 * Solves left * x = right by Gauss-Jordan elimination with partial
+	 * pivoting. Both matrices are stored row by row, left has n x n elements
+	 * and right has n x rCols elements. The solution is stored in right and
+	 * left is reduced to the identity matrix.
+	 */
+	public void gaussJordan(double[] left, double[] right, int n, int rCols) {
 		
 		for (int i = 0; i < n; i++) {
 			
@@ -204,43 +508,151 @@ public abstract class LevenbergMarquardt {
 			int max = i;
 			
 			for (int j = i + 1; j < n; j++) {
-				if (Math.abs(left[j][i]) > Math.abs(left[max][i]))
+				if (Math.abs(left[j * n + i]) > Math.abs(left[max * n + i]))
 					max = j;
 			}
 			
 			// swap rows
-			double[] t = left[i];
-			left[i] = left[max];
-			left[max] = t;
-			
-			t = right[i];
-			right[i] = right[max];
-			right[max] = t;
+			if (max != i) {
+				
+				for (int k = 0; k < n; k++) {
+					double t = left[i * n + k];
+					left[i * n + k] = left[max * n + k];
+					left[max * n + k] = t;
+				}
+				
+				for (int k = 0; k < rCols; k++) {
+					double t = right[i * rCols + k];
+					right[i * rCols + k] = right[max * rCols + k];
+					right[max * rCols + k] = t;
+				}
+				
+			}
 			
 			// reduce
 			for (int j = 0; j < n; j++) {
 				
 				if (j != i) {
-					double d = left[j][i] / left[i][i];
+					double d = left[j * n + i] / left[i * n + i];
 					
-					left[j][i] = 0;
+					left[j * n + i] = 0;
 					
 					for (int k = i + 1; k < n; k++)
-						left[j][k] -= d * left[i][k];
+						left[j * n + k] -= d * left[i * n + k];
 					
 					for (int k = 0; k < rCols; k++)
-						right[j][k] -= d * right[i][k];
+						right[j * rCols + k] -= d * right[i * rCols + k];
 				}
 			}
 		}
 		
 		for (int i = 0; i < n; i++) {
-			double d = left[i][i];
+			double d = left[i * n + i];
 			
 			for (int k = 0; k < rCols; k++)
-				right[i][k] /= d;
+				right[i * rCols + k] /= d;
 			
-			left[i][i] = 1;
+			left[i * n + i] = 1;
+		}
+	}
+	
+	/**
+	 * Evaluates the model for the points of one of the solve methods, either
+	 * one point at a time (x) or all at once (xs or window).
+	 */
+	private void evaluate(double[][] x, double[] xs, int dimensions, Rectangle window, int n, double[] parameters, double[] values, double[] jacobian, Workspace workspace) {
+		
+		if (window != null) {
+			evaluate(window, parameters, values, jacobian, workspace);
+			return;
+		}
+		
+		if (x == null) {
+			evaluate(xs, dimensions, n, parameters, values, jacobian, workspace);
+			return;
+		}
+		
+		double[] dyda = workspace.dyda;
+		
+		for (int i = 0; i < n; i++) {
+			
+			values[i] = getValue(x[i], parameters);
+			
+			if (jacobian != null) {
+				getGradient(x[i], parameters, dyda);
+				System.arraycopy(dyda, 0, jacobian, i * parameters.length, parameters.length);
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates the model and (if jacobian is not null) its gradient for n
+	 * points at once. Coordinate k of point i is xs[k * n + i], the value of
+	 * point i is stored in values[i] and the derivative to parameter j in
+	 * jacobian[i * parameters.length + j]. This implementation calls getValue
+	 * and getGradient for each point, models can override it to evaluate
+	 * all points in a single loop. The scratch arrays are taken from the
+	 * workspace of the calling thread.
+	 */
+	public void evaluate(double[] xs, int dimensions, int n, double[] parameters, double[] values, double[] jacobian) {
+		evaluate(xs, dimensions, n, parameters, values, jacobian, workspaces.get());
+	}
+	
+	/**
+	 * Same as the other evaluate method, with the scratch arrays (the point
+	 * and its gradient) taken from the given workspace. This is the method
+	 * models override.
+	 */
+	public void evaluate(double[] xs, int dimensions, int n, double[] parameters, double[] values, double[] jacobian, Workspace workspace) {
+		
+		workspace.ensureCapacity(parameters.length, 0);
+		
+		double[] x = workspace.getPoint(dimensions);
+		double[] dyda = workspace.dyda;
+		
+		for (int i = 0; i < n; i++) {
+			
+			for (int k = 0; k < dimensions; k++)
+				x[k] = xs[k * n + i];
+			
+			values[i] = getValue(x, parameters);
+			
+			if (jacobian != null) {
+				getGradient(x, parameters, dyda);
+				System.arraycopy(dyda, 0, jacobian, i * parameters.length, parameters.length);
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates the model and (if jacobian is not null) its gradient for all
+	 * pixels of a window, in the same layout as the other evaluate method
+	 * with point i at (window.x + i % window.width, window.y + i / window.width).
+	 */
+	public void evaluate(Rectangle window, double[] parameters, double[] values, double[] jacobian) {
+		evaluate(window, parameters, values, jacobian, workspaces.get());
+	}
+	
+	public void evaluate(Rectangle window, double[] parameters, double[] values, double[] jacobian, Workspace workspace) {
+		
+		workspace.ensureCapacity(parameters.length, 0);
+		
+		double[] x = workspace.getPoint(2);
+		double[] dyda = workspace.dyda;
+		
+		for (int i = 0, y = 0; y < window.height; y++) {
+			for (int j = 0; j < window.width; j++, i++) {
+				
+				x[0] = window.x + j;
+				x[1] = window.y + y;
+				
+				values[i] = getValue(x, parameters);
+				
+				if (jacobian != null) {
+					getGradient(x, parameters, dyda);
+					System.arraycopy(dyda, 0, jacobian, i * parameters.length, parameters.length);
+				}
+			}
 		}
 	}
 	
@@ -0,0 +1,229 @@
+package analyze;
+
+import java.util.Arrays;
+
+/**
+ * Solves sparse linear assignment problems: assign each row to a different
+ * column such that the sum of the costs of the assignments is minimal. Only
+ * the allowed (row, column) pairs and their costs are given, as lists of
+ * columns and costs per row.
+ *
+ * The rows are assigned one by one with the shortest augmenting path method of
+ * Jonker and Volgenant: Dijkstra's algorithm on the reduced costs finds the
+ * cheapest way to free a column for the new row by shifting already assigned
+ * rows, after which the column potentials are updated so that reduced costs
+ * stay non-negative. Since the search stops at the first free column, a row
+ * whose best column is free is assigned immediately and paths only extend as
+ * far as rows compete for the same columns.
+ */
+public class LinearAssignment {
+	
+	/**
+	 * Assigns the rows to columns. The allowed columns of row i are
+	 * columns[starts[i]] up to columns[starts[i + 1]] with the corresponding
+	 * costs, which should not be negative. There must be an assignment in
+	 * which every row is assigned, for example by giving each row a column of
+	 * its own (that stands for not assigning the row).
+	 *
+	 * @return the column of each row
+	 */
+	public static int[] solve(int rows, int numberOfColumns, int[] starts, int[] columns, double[] costs) {
+		
+		int[] columnOfRow = new int[rows];
+		int[] rowOfColumn = new int[numberOfColumns];
+		double[] v = new double[numberOfColumns];
+		
+		Arrays.fill(columnOfRow, -1);
+		Arrays.fill(rowOfColumn, -1);
+		
+		// per search, only the columns that were reached are reset afterwards
+		double[] d = new double[numberOfColumns];
+		int[] pred = new int[numberOfColumns];
+		boolean[] isScanned = new boolean[numberOfColumns];
+		int[] reached = new int[numberOfColumns];
+		int[] scanned = new int[numberOfColumns];
+		Heap heap = new Heap();
+		
+		Arrays.fill(d, Double.POSITIVE_INFINITY);
+		
+		for (int free = 0; free < rows; free++) {
+			
+			int numberOfReached = 0;
+			int numberOfScanned = 0;
+			int end = -1;
+			double minimum = 0;
+			
+			heap.clear();
+			
+			for (int e = starts[free]; e < starts[free + 1]; e++) {
+				
+				int column = columns[e];
+				double distance = costs[e] - v[column];
+				
+				if (distance < d[column]) {
+					
+					if (d[column] == Double.POSITIVE_INFINITY)
+						reached[numberOfReached++] = column;
+					
+					d[column] = distance;
+					pred[column] = free;
+					heap.push(distance, column);
+				}
+				
+			}
+			
+			while (heap.size > 0) {
+				
+				double distance = heap.peekKey();
+				int column = heap.pop();
+				
+				if (isScanned[column] || distance > d[column])
+					continue;	// stale entry
+				
+				isScanned[column] = true;
+				
+				if (rowOfColumn[column] < 0) {	// free column, the path is complete
+					end = column;
+					minimum = distance;
+					break;
+				}
+				
+				scanned[numberOfScanned++] = column;
+				
+				// continue with the row that is assigned to this column
+				int row = rowOfColumn[column];
+				double u = getCost(row, column, starts, columns, costs) - v[column];
+				
+				for (int e = starts[row]; e < starts[row + 1]; e++) {
+					
+					int next = columns[e];
+					
+					if (isScanned[next])
+						continue;
+					
+					double nextDistance = distance + costs[e] - v[next] - u;
+					
+					if (nextDistance < d[next]) {
+						
+						if (d[next] == Double.POSITIVE_INFINITY)
+							reached[numberOfReached++] = next;
+						
+						d[next] = nextDistance;
+						pred[next] = row;
+						heap.push(nextDistance, next);
+					}
+					
+				}
+				
+			}
+			
+			if (end < 0)
+				throw new IllegalArgumentException("row " + free + " can not be assigned");
+			
+			// update the potentials of the scanned columns
+			for (int i = 0; i < numberOfScanned; i++)
+				v[scanned[i]] += d[scanned[i]] - minimum;
+			
+			// shift the assignments along the path
+			for (int column = end;;) {
+				
+				int row = pred[column];
+				int previous = columnOfRow[row];
+				
+				rowOfColumn[column] = row;
+				columnOfRow[row] = column;
+				
+				if (row == free)
+					break;
+				
+				column = previous;
+			}
+			
+			for (int i = 0; i < numberOfReached; i++) {
+				d[reached[i]] = Double.POSITIVE_INFINITY;
+				isScanned[reached[i]] = false;
+			}
+			
+		}
+		
+		return columnOfRow;
+	}
+	
+	private static double getCost(int row, int column, int[] starts, int[] columns, double[] costs) {
+		
+		for (int e = starts[row]; e < starts[row + 1]; e++) {
+			if (columns[e] == column)
+				return costs[e];
+		}
+		
+		throw new IllegalStateException("row " + row + " is assigned to column " + column + " which it can not be assigned to");
+	}
+	
+	/**
+	 * Binary min heap of columns keyed on distance. Columns can be in the
+	 * heap more than once, outdated entries are skipped when popped.
+	 */
+	private static class Heap {
+		
+		private double[] keys = new double[64];
+		private int[] values = new int[64];
+		public int size = 0;
+		
+		public void clear() {
+			size = 0;
+		}
+		
+		public void push(double key, int value) {
+			
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			
+			int i = size++;
+			
+			while (i > 0 && keys[(i - 1) / 2] > key) {
+				keys[i] = keys[(i - 1) / 2];
+				values[i] = values[(i - 1) / 2];
+				i = (i - 1) / 2;
+			}
+			
+			keys[i] = key;
+			values[i] = value;
+		}
+		
+		public double peekKey() {
+			return keys[0];
+		}
+		
+		public int pop() {
+			
+			int top = values[0];
+			double key = keys[--size];
+			int value = values[size];
+			int i = 0;
+			
+			while (2 * i + 1 < size) {
+				
+				int child = 2 * i + 1;
+				
+				if (child + 1 < size && keys[child + 1] < keys[child])
+					child++;
+				
+				if (keys[child] >= key)
+					break;
+				
+				keys[i] = keys[child];
+				values[i] = values[child];
+				i = child;
+			}
+			
+			keys[i] = key;
+			values[i] = value;
+			
+			return top;
+		}
+		
+	}
+	
+}
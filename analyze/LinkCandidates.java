@@ -0,0 +1,161 @@
+package analyze;
+
+import java.util.Arrays;
+
+/**
+ * Possible links between peaks, from row1 to row2 of a localization table
+ * that are gap slices apart. The distance of a link ranks links of the same
+ * gap, it is the squared distance between the peaks (or, with a motion
+ * model, the squared distance to the predicted position in standard
+ * deviations). The links are stored in primitive arrays instead of an object
+ * per link, dx and dy are not stored since they follow from the rows.
+ */
+class LinkCandidates {
+	
+	private int size = 0;
+	private int[] gaps;
+	private double[] distances;
+	private int[] rows1;
+	private int[] rows2;
+	
+	public LinkCandidates() {
+		this(16);
+	}
+	
+	public LinkCandidates(int capacity) {
+		capacity = Math.max(capacity, 1);
+		gaps = new int[capacity];
+		distances = new double[capacity];
+		rows1 = new int[capacity];
+		rows2 = new int[capacity];
+	}
+	
+	public void add(int gap, double distance, int row1, int row2) {
+		
+		if (size == gaps.length) {
+			
+			int capacity = size * 2;
+			
+			gaps = Arrays.copyOf(gaps, capacity);
+			distances = Arrays.copyOf(distances, capacity);
+			rows1 = Arrays.copyOf(rows1, capacity);
+			rows2 = Arrays.copyOf(rows2, capacity);
+		}
+		
+		gaps[size] = gap;
+		distances[size] = distance;
+		rows1[size] = row1;
+		rows2[size] = row2;
+		size++;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Removes all links, so that the arrays can be reused.
+	 */
+	public void clear() {
+		size = 0;
+	}
+	
+	public int getGap(int link) {
+		return gaps[link];
+	}
+	
+	public double getDistance(int link) {
+		return distances[link];
+	}
+	
+	public int getRow1(int link) {
+		return rows1[link];
+	}
+	
+	public int getRow2(int link) {
+		return rows2[link];
+	}
+	
+	/**
+	 * Returns the links for which select is true, in the same order.
+	 */
+	public LinkCandidates select(boolean[] select) {
+		
+		LinkCandidates selected = new LinkCandidates();
+		
+		for (int i = 0; i < size; i++) {
+			if (select[i])
+				selected.add(gaps[i], distances[i], rows1[i], rows2[i]);
+		}
+		
+		return selected;
+	}
+	
+	/**
+	 * Sorts the links on gap and distance, links that are equally good are
+	 * sorted on row1 and row2.
+	 */
+	public void sort() {
+		
+		int[] order = new int[size];
+		
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		
+		sort(order, order.clone(), 0, size);
+		
+		int[] sortedGaps = new int[gaps.length];
+		double[] sortedDistances = new double[gaps.length];
+		int[] sortedRows1 = new int[gaps.length];
+		int[] sortedRows2 = new int[gaps.length];
+		
+		for (int i = 0; i < size; i++) {
+			sortedGaps[i] = gaps[order[i]];
+			sortedDistances[i] = distances[order[i]];
+			sortedRows1[i] = rows1[order[i]];
+			sortedRows2[i] = rows2[order[i]];
+		}
+		
+		gaps = sortedGaps;
+		distances = sortedDistances;
+		rows1 = sortedRows1;
+		rows2 = sortedRows2;
+	}
+	
+	/**
+	 * Merge sort of order[from, to) using buffer (which should have the same
+	 * contents) as scratch space.
+	 */
+	private void sort(int[] order, int[] buffer, int from, int to) {
+		
+		if (to - from < 2)
+			return;
+		
+		int middle = (from + to) >>> 1;
+		
+		sort(buffer, order, from, middle);
+		sort(buffer, order, middle, to);
+		
+		for (int i = from, left = from, right = middle; i < to; i++) {
+			if (right >= to || (left < middle && compare(buffer[left], buffer[right]) <= 0))
+				order[i] = buffer[left++];
+			else
+				order[i] = buffer[right++];
+		}
+	}
+	
+	private int compare(int link1, int link2) {
+		
+		if (gaps[link1] != gaps[link2])
+			return gaps[link1] < gaps[link2] ? -1 : 1;
+		
+		if (distances[link1] != distances[link2])
+			return Double.compare(distances[link1], distances[link2]);
+		
+		if (rows1[link1] != rows1[link2])
+			return rows1[link1] < rows1[link2] ? -1 : 1;
+		
+		return rows2[link1] < rows2[link2] ? -1 : rows2[link1] == rows2[link2] ? 0 : 1;
+	}
+	
+}
@@ -0,0 +1,299 @@
+package analyze;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Collects the peaks fitted by a single thread in primitive columns, so that
+ * threads that fit peaks in parallel do not have to share (and lock) the
+ * results table. Once all slices are processed the buffers of all threads
+ * are merged in slice order and written to the results table at once.
+ */
+public class LocalizationBuffer {
+	
+	private int size = 0;
+	private int[] slices;
+	private double[] rSquared;
+	private int[] rois;
+	private double[][] parameters;
+	private double[][] errors;
+	
+	public LocalizationBuffer() {
+		this(256);
+	}
+	
+	private LocalizationBuffer(int capacity) {
+		capacity = Math.max(capacity, 1);
+		slices = new int[capacity];
+		rSquared = new double[capacity];
+		rois = new int[capacity];
+		parameters = new double[6][capacity];
+		errors = new double[6][capacity];
+	}
+	
+	/**
+	 * Appends a fitted peak with parameters and errors in the order
+	 * {baseline, height, x, y, sigma_x, sigma_y}. The roi is the number of
+	 * the roi the peak was found in, or 0 if peaks were not fitted inside
+	 * rois.
+	 */
+	public void add(double[] p, double[] e, int slice, double r, int roi) {
+		
+		if (size == slices.length) {
+			
+			int capacity = size * 2;
+			
+			slices = Arrays.copyOf(slices, capacity);
+			rSquared = Arrays.copyOf(rSquared, capacity);
+			rois = Arrays.copyOf(rois, capacity);
+			
+			for (int i = 0; i < parameters.length; i++) {
+				parameters[i] = Arrays.copyOf(parameters[i], capacity);
+				errors[i] = Arrays.copyOf(errors[i], capacity);
+			}
+		}
+		
+		for (int i = 0; i < parameters.length; i++) {
+			parameters[i][size] = p[i];
+			errors[i][size] = e[i];
+		}
+		
+		slices[size] = slice;
+		rSquared[size] = r;
+		rois[size] = roi;
+		size++;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getSlice(int row) {
+		return slices[row];
+	}
+	
+	public double getRSquared(int row) {
+		return rSquared[row];
+	}
+	
+	public int getRoi(int row) {
+		return rois[row];
+	}
+	
+	public double getParameter(int row, int parameter) {
+		return parameters[parameter][row];
+	}
+	
+	public double getError(int row, int parameter) {
+		return errors[parameter][row];
+	}
+	
+	/**
+	 * Merges buffers into a single buffer sorted by slice. Peaks of the same
+	 * slice keep the order in which they were added.
+	 */
+	public static LocalizationBuffer merge(List<LocalizationBuffer> buffers) {
+		
+		int total = 0;
+		
+		for (LocalizationBuffer buffer: buffers)
+			total += buffer.size;
+		
+		LocalizationBuffer all = new LocalizationBuffer(total);
+		
+		for (LocalizationBuffer buffer: buffers) {
+			for (int i = 0; i < buffer.size; i++)
+				all.add(buffer, i);
+		}
+		
+		// sort on slice first and on position in the concatenated buffers second
+		long[] order = new long[total];
+		
+		for (int i = 0; i < total; i++)
+			order[i] = ((long)all.slices[i] << 32) | i;
+		
+		Arrays.sort(order);
+		
+		LocalizationBuffer merged = new LocalizationBuffer(total);
+		
+		for (int i = 0; i < total; i++)
+			merged.add(all, (int)order[i]);
+		
+		return merged;
+	}
+	
+	/**
+	 * Appends a row of another buffer.
+	 */
+	private void add(LocalizationBuffer source, int row) {
+		
+		slices[size] = source.slices[row];
+		rSquared[size] = source.rSquared[row];
+		rois[size] = source.rois[row];
+		
+		for (int i = 0; i < parameters.length; i++) {
+			parameters[i][size] = source.parameters[i][row];
+			errors[i][size] = source.errors[i][row];
+		}
+		
+		size++;
+	}
+	
+	/**
+	 * Appends all peaks to the results table, with the same columns as
+	 * {@link PeakFitter#addToResultsTable} and a roi column if any of the
+	 * peaks was fitted inside a roi. Columns are looked up once instead of
+	 * once for every value.
+	 */
+	public void addToResultsTable(ResultsTable table) {
+		
+		int baseline = getColumn(table, "baseline");
+		int height = getColumn(table, "height");
+		int x = getColumn(table, "x");
+		int y = getColumn(table, "y");
+		int sigmaX = getColumn(table, "sigma_x");
+		int sigmaY = getColumn(table, "sigma_y");
+		int fwhmX = getColumn(table, "fwhm_x");
+		int fwhmY = getColumn(table, "fwhm_y");
+		int fwhm = getColumn(table, "fwhm");
+		int errorBaseline = getColumn(table, "error_baseline");
+		int errorHeight = getColumn(table, "error_height");
+		int errorX = getColumn(table, "error_x");
+		int errorY = getColumn(table, "error_y");
+		int errorSigmaX = getColumn(table, "error_sigma_x");
+		int errorSigmaY = getColumn(table, "error_sigma_y");
+		int errorFwhmX = getColumn(table, "error_fwhm_x");
+		int errorFwhmY = getColumn(table, "error_fwhm_y");
+		int errorFwhm = getColumn(table, "error_fwhm");
+		int slice = getColumn(table, "slice");
+		int r = getColumn(table, "r_squared");
+		int roi = -1;
+		
+		for (int i = 0; roi < 0 && i < size; i++) {
+			if (rois[i] != 0)
+				roi = getColumn(table, "roi");
+		}
+		
+		for (int i = 0; i < size; i++) {
+			
+			// sigma_x and sigma_y should always be absolute
+			double sx = Math.abs(parameters[4][i]);
+			double sy = Math.abs(parameters[5][i]);
+			
+			table.incrementCounter();
+			
+			table.addValue(baseline, parameters[0][i]);
+			table.addValue(height, parameters[1][i]);
+			table.addValue(x, parameters[2][i]);
+			table.addValue(y, parameters[3][i]);
+			table.addValue(sigmaX, sx);
+			table.addValue(sigmaY, sy);
+			
+			double fwhmx = sx * PeakFitter.SIGMA_TO_FWHM;
+			double fwhmy = sy * PeakFitter.SIGMA_TO_FWHM;
+			
+			table.addValue(fwhmX, fwhmx);
+			table.addValue(fwhmY, fwhmy);
+			table.addValue(fwhm, (fwhmx + fwhmy) / 2);
+			
+			table.addValue(errorBaseline, errors[0][i]);
+			table.addValue(errorHeight, errors[1][i]);
+			table.addValue(errorX, errors[2][i]);
+			table.addValue(errorY, errors[3][i]);
+			table.addValue(errorSigmaX, errors[4][i]);
+			table.addValue(errorSigmaY, errors[5][i]);
+			
+			double errorFwhmx = errors[4][i] * PeakFitter.SIGMA_TO_FWHM;
+			double errorFwhmy = errors[5][i] * PeakFitter.SIGMA_TO_FWHM;
+			
+			table.addValue(errorFwhmX, errorFwhmx);
+			table.addValue(errorFwhmY, errorFwhmy);
+			table.addValue(errorFwhm, Math.sqrt(errorFwhmx * errorFwhmx + errorFwhmy * errorFwhmy) / 2);
+			
+			table.addValue(slice, slices[i]);
+			
+			table.addValue(r, rSquared[i]);
+			
+			if (roi >= 0)
+				table.addValue(roi, rois[i]);
+		}
+		
+	}
+	
+	/**
+	 * Returns the peaks as a localization table with the same columns as
+	 * {@link #addToResultsTable}, and the same column types as
+	 * {@link LocalizationTable#fromResultsTable} gives them, without going
+	 * through a results table.
+	 */
+	public LocalizationTable toLocalizationTable() {
+		
+		LocalizationTable table = LocalizationTable.withRows(size);
+		int capacity = table.getCapacity();
+		
+		double[][] values = new double[8][capacity];
+		
+		for (int i = 0; i < size; i++) {
+			
+			// sigma_x and sigma_y should always be absolute
+			double sx = Math.abs(parameters[4][i]);
+			double sy = Math.abs(parameters[5][i]);
+			double fwhmx = sx * PeakFitter.SIGMA_TO_FWHM;
+			double fwhmy = sy * PeakFitter.SIGMA_TO_FWHM;
+			double errorFwhmx = errors[4][i] * PeakFitter.SIGMA_TO_FWHM;
+			double errorFwhmy = errors[5][i] * PeakFitter.SIGMA_TO_FWHM;
+			
+			values[0][i] = sx;
+			values[1][i] = sy;
+			values[2][i] = fwhmx;
+			values[3][i] = fwhmy;
+			values[4][i] = (fwhmx + fwhmy) / 2;
+			values[5][i] = errorFwhmx;
+			values[6][i] = errorFwhmy;
+			values[7][i] = Math.sqrt(errorFwhmx * errorFwhmx + errorFwhmy * errorFwhmy) / 2;
+		}
+		
+		table.addColumn("baseline", Arrays.copyOf(parameters[0], capacity));
+		table.addColumn("height", Arrays.copyOf(parameters[1], capacity));
+		table.addColumn("x", Arrays.copyOf(parameters[2], capacity));
+		table.addColumn("y", Arrays.copyOf(parameters[3], capacity));
+		table.addColumn("sigma_x", values[0]);
+		table.addColumn("sigma_y", values[1]);
+		table.addColumn("fwhm_x", values[2]);
+		table.addColumn("fwhm_y", values[3]);
+		table.addColumn("fwhm", values[4]);
+		table.addColumn("error_baseline", Arrays.copyOf(errors[0], capacity));
+		table.addColumn("error_height", Arrays.copyOf(errors[1], capacity));
+		table.addColumn("error_x", Arrays.copyOf(errors[2], capacity));
+		table.addColumn("error_y", Arrays.copyOf(errors[3], capacity));
+		table.addColumn("error_sigma_x", Arrays.copyOf(errors[4], capacity));
+		table.addColumn("error_sigma_y", Arrays.copyOf(errors[5], capacity));
+		table.addColumn("error_fwhm_x", values[5]);
+		table.addColumn("error_fwhm_y", values[6]);
+		table.addColumn("error_fwhm", values[7]);
+		table.addColumn("slice", Arrays.copyOf(slices, capacity));
+		table.addColumn("r_squared", Arrays.copyOf(rSquared, capacity));
+		
+		for (int i = 0; i < size; i++) {
+			if (rois[i] != 0) {
+				table.addColumn("roi", Arrays.copyOf(rois, capacity));
+				break;
+			}
+		}
+		
+		return table;
+	}
+	
+	private static int getColumn(ResultsTable table, String heading) {
+		
+		int column = table.getColumnIndex(heading);
+		
+		if (column == ResultsTable.COLUMN_NOT_FOUND)
+			column = table.getFreeColumn(heading);
+		
+		return column;
+	}
+	
+}
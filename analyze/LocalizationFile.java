@@ -0,0 +1,588 @@
+package analyze;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import analyze.LocalizationTable.Column;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.FloatColumn;
+import analyze.LocalizationTable.IntColumn;
+import analyze.LocalizationTable.TextColumn;
+
+/**
+ * Binary columnar file format for localization tables. The file consists of
+ *
+ * a header: "LOCTABLE", the version, the number of columns and the type and
+ * name of each column,
+ *
+ * blocks of at most blockRows rows: the number of rows followed by the values
+ * of each column (each column padded to a multiple of 8 bytes),
+ *
+ * a footer: the offset and number of rows of each block, a slice index with
+ * the first row and the number of rows of each slice (if the rows were written
+ * in slice order) and finally the offset of the footer itself.
+ *
+ * All values are little endian. A {@link Writer} writes a table block by
+ * block, so tables can be written while they are being fitted. Opening a file
+ * only reads the header and the footer and maps the file into memory, columns
+ * are only copied from the mapping when they are read.
+ */
+public class LocalizationFile {
+	
+	private static final byte[] MAGIC = "LOCTABLE".getBytes(Charset.forName("US-ASCII"));
+	private static final int VERSION = 1;
+	
+	private static final int INT = 1;
+	private static final int FLOAT = 2;
+	private static final int DOUBLE = 3;
+	
+	private static final int blockRows = 65536;
+	
+	// the file is mapped in chunks since a single mapping is limited to 2 GB
+	private static final long CHUNK_SIZE = 1L << 30;
+	
+	private final String[] names;
+	private final int[] types;
+	private final Map<String, Integer> columnsByName = new HashMap<String, Integer>();
+	
+	private final long[] blockOffsets;
+	private final int[] blockFirstRows;
+	private final int[] blockSizes;
+	private final int size;
+	
+	private final int[] slices;
+	private final int[] sliceFirstRows;
+	private final int[] sliceSizes;
+	
+	private final MappedByteBuffer[] chunks;
+	
+	/**
+	 * Writes a localization table to a file.
+	 */
+	public static void write(LocalizationTable table, String path) throws IOException {
+		
+		Writer writer = new Writer(path, table);
+		
+		try {
+			writer.write(table);
+		}
+		finally {
+			writer.close();
+		}
+		
+	}
+	
+	/**
+	 * Reads all rows and columns of a file. Use {@link #open} and
+	 * {@link #read(String...)} to read only some of the columns.
+	 */
+	public static LocalizationTable readAll(String path) throws IOException {
+		return open(path).read();
+	}
+	
+	/**
+	 * Writes tables with the same columns to a file, one or more blocks for
+	 * every table. The file is complete after the writer is closed.
+	 */
+	public static class Writer {
+		
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final String[] names;
+		private final int[] types;
+		
+		private final List<long[]> blocks = new ArrayList<long[]>();
+		private int rows = 0;
+		
+		// slice index, only kept as long as slices do not decrease
+		private boolean isIndexed;
+		private int[] slices = new int[256];
+		private int[] sliceFirstRows = new int[256];
+		private int[] sliceSizes = new int[256];
+		private int indexedSlices = 0;
+		
+		/**
+		 * Creates a file with the numeric columns (and column types) of a
+		 * table, text columns are not written.
+		 */
+		public Writer(String path, LocalizationTable table) throws IOException {
+			
+			List<String> numericNames = new ArrayList<String>();
+			
+			for (String name: table.getColumnNames()) {
+				if (!(table.getColumn(name) instanceof TextColumn))
+					numericNames.add(name);
+			}
+			
+			names = numericNames.toArray(new String[numericNames.size()]);
+			types = new int[names.length];
+			
+			for (int i = 0; i < names.length; i++)
+				types[i] = getType(table.getColumn(names[i]));
+			
+			isIndexed = table.getColumn("slice") instanceof IntColumn;
+			
+			file = new RandomAccessFile(path, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			
+			int length = MAGIC.length + 8;
+			
+			for (String name: names)
+				length += 4 + 4 + name.getBytes("UTF-8").length;
+			
+			ByteBuffer header = allocate(pad(length));
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(names.length);
+			
+			for (int i = 0; i < names.length; i++) {
+				
+				byte[] name = names[i].getBytes("UTF-8");
+				
+				header.putInt(types[i]);
+				header.putInt(name.length);
+				header.put(name);
+			}
+			
+			// blocks start at a multiple of 8 bytes
+			header.position(header.capacity());
+			writeFully(header);
+		}
+		
+		/**
+		 * Appends all rows of a table, which should have the same columns as
+		 * the table the writer was created with.
+		 */
+		public void write(LocalizationTable table) throws IOException {
+			
+			Column[] columns = new Column[names.length];
+			
+			for (int i = 0; i < names.length; i++) {
+				
+				columns[i] = table.getColumn(names[i]);
+				
+				if (columns[i] == null || getType(columns[i]) != types[i])
+					throw new IllegalArgumentException("column " + names[i] + " differs from the columns of the file");
+			}
+			
+			for (int from = 0; from < table.size(); from += blockRows)
+				writeBlock(columns, from, Math.min(from + blockRows, table.size()));
+			
+			if (isIndexed)
+				index((IntColumn)table.getColumn("slice"), table.size());
+		}
+		
+		private void writeBlock(Column[] columns, int from, int to) throws IOException {
+			
+			int length = 8;
+			
+			for (int type: types)
+				length += pad((to - from) * getSize(type));
+			
+			ByteBuffer block = allocate(length);
+			block.putLong(to - from);
+			
+			for (int i = 0; i < columns.length; i++) {
+				
+				switch (types[i]) {
+				case INT:
+					IntColumn ints = (IntColumn)columns[i];
+					for (int row = from; row < to; row++)
+						block.putInt(ints.get(row));
+					break;
+				case FLOAT:
+					FloatColumn floats = (FloatColumn)columns[i];
+					for (int row = from; row < to; row++)
+						block.putFloat(floats.get(row));
+					break;
+				default:
+					DoubleColumn doubles = (DoubleColumn)columns[i];
+					for (int row = from; row < to; row++)
+						block.putDouble(doubles.get(row));
+					break;
+				}
+				
+				block.position(pad(block.position()));
+			}
+			
+			blocks.add(new long[] {channel.position(), to - from});
+			writeFully(block);
+			
+			rows += to - from;
+		}
+		
+		private void index(IntColumn sliceColumn, int size) {
+			
+			int firstRow = rows - size;
+			
+			for (int row = 0; isIndexed && row < size; row++) {
+				
+				int slice = sliceColumn.get(row);
+				
+				if (indexedSlices > 0 && slice == slices[indexedSlices - 1]) {
+					sliceSizes[indexedSlices - 1]++;
+				}
+				else if (indexedSlices > 0 && slice < slices[indexedSlices - 1]) {
+					isIndexed = false;
+				}
+				else {
+					
+					if (indexedSlices == slices.length) {
+						slices = Arrays.copyOf(slices, indexedSlices * 2);
+						sliceFirstRows = Arrays.copyOf(sliceFirstRows, indexedSlices * 2);
+						sliceSizes = Arrays.copyOf(sliceSizes, indexedSlices * 2);
+					}
+					
+					slices[indexedSlices] = slice;
+					sliceFirstRows[indexedSlices] = firstRow + row;
+					sliceSizes[indexedSlices] = 1;
+					indexedSlices++;
+				}
+				
+			}
+			
+		}
+		
+		/**
+		 * Writes the footer and closes the file.
+		 */
+		public void close() throws IOException {
+			
+			try {
+				
+				if (!isIndexed)
+					indexedSlices = 0;
+				
+				long offset = channel.position();
+				ByteBuffer footer = allocate(8 + blocks.size() * 16 + 4 + indexedSlices * 12 + 8);
+				
+				footer.putInt(blocks.size());
+				footer.putInt(rows);
+				
+				for (long[] block: blocks) {
+					footer.putLong(block[0]);
+					footer.putLong(block[1]);
+				}
+				
+				footer.putInt(indexedSlices);
+				
+				for (int i = 0; i < indexedSlices; i++) {
+					footer.putInt(slices[i]);
+					footer.putInt(sliceFirstRows[i]);
+					footer.putInt(sliceSizes[i]);
+				}
+				
+				footer.putLong(offset);
+				
+				writeFully(footer);
+			}
+			finally {
+				file.close();
+			}
+			
+		}
+		
+		private void writeFully(ByteBuffer buffer) throws IOException {
+			
+			buffer.flip();
+			
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		
+	}
+	
+	/**
+	 * Reads the header and the footer of a file and maps its blocks into
+	 * memory.
+	 */
+	public static LocalizationFile open(String path) throws IOException {
+		
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		
+		try {
+			return new LocalizationFile(file.getChannel());
+		}
+		finally {
+			file.close();	// the mappings stay valid after the file is closed
+		}
+		
+	}
+	
+	private LocalizationFile(FileChannel channel) throws IOException {
+		
+		ByteBuffer header = read(channel, 0, MAGIC.length + 8);
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("not a localization file");
+		
+		int version = header.getInt();
+		
+		if (version != VERSION)
+			throw new IOException("unknown localization file version " + version);
+		
+		names = new String[header.getInt()];
+		types = new int[names.length];
+		
+		long position = header.limit();
+		
+		for (int i = 0; i < names.length; i++) {
+			
+			ByteBuffer column = read(channel, position, 8);
+			types[i] = column.getInt();
+			byte[] name = new byte[column.getInt()];
+			
+			read(channel, position + 8, name.length).get(name);
+			names[i] = new String(name, "UTF-8");
+			columnsByName.put(names[i], i);
+			
+			position += 8 + name.length;
+		}
+		
+		// the footer ends with its own offset
+		long footerOffset = read(channel, channel.size() - 8, 8).getLong();
+		ByteBuffer footer = read(channel, footerOffset, (int)(channel.size() - footerOffset));
+		
+		blockOffsets = new long[footer.getInt()];
+		blockFirstRows = new int[blockOffsets.length];
+		blockSizes = new int[blockOffsets.length];
+		size = footer.getInt();
+		
+		int rows = 0;
+		long blockEnd = 0;
+		int maxBlockLength = 0;
+		
+		for (int i = 0; i < blockOffsets.length; i++) {
+			
+			blockOffsets[i] = footer.getLong();
+			blockSizes[i] = (int)footer.getLong();
+			blockFirstRows[i] = rows;
+			rows += blockSizes[i];
+			
+			maxBlockLength = Math.max(maxBlockLength, getBlockLength(blockSizes[i]));
+			blockEnd = blockOffsets[i] + getBlockLength(blockSizes[i]);
+		}
+		
+		slices = new int[footer.getInt()];
+		sliceFirstRows = new int[slices.length];
+		sliceSizes = new int[slices.length];
+		
+		for (int i = 0; i < slices.length; i++) {
+			slices[i] = footer.getInt();
+			sliceFirstRows[i] = footer.getInt();
+			sliceSizes[i] = footer.getInt();
+		}
+		
+		// each chunk holds the blocks that start inside it completely
+		chunks = new MappedByteBuffer[blockEnd == 0 ? 0 : (int)((blockEnd - 1) / CHUNK_SIZE) + 1];
+		
+		for (int i = 0; i < chunks.length; i++) {
+			long start = i * CHUNK_SIZE;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE + maxBlockLength, blockEnd - start));
+		}
+		
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String[] getColumnNames() {
+		return names.clone();
+	}
+	
+	public boolean hasColumn(String name) {
+		return columnsByName.containsKey(name);
+	}
+	
+	/**
+	 * Returns whether the rows were written in slice order, so that the rows
+	 * of slices can be read with {@link #readSlices}.
+	 */
+	public boolean isIndexed() {
+		return slices.length > 0 || size == 0;
+	}
+	
+	/**
+	 * Reads all rows of the given columns, or of all columns if no columns
+	 * are given.
+	 */
+	public LocalizationTable read(String... names) {
+		return read(0, size, names);
+	}
+	
+	/**
+	 * Reads the rows of slices from (inclusive) to to (inclusive) of the given
+	 * columns, or of all columns if no columns are given.
+	 */
+	public LocalizationTable readSlices(int from, int to, String... names) {
+		
+		if (!isIndexed())
+			throw new IllegalStateException("the rows of the file are not in slice order");
+		
+		int first = getSliceIndex(from);
+		int last = getSliceIndex(to + 1);
+		
+		if (first == last)
+			return read(0, 0, names);
+		
+		return read(sliceFirstRows[first], sliceFirstRows[last - 1] + sliceSizes[last - 1], names);
+	}
+	
+	/**
+	 * Returns the index of the first indexed slice that is not smaller than
+	 * slice.
+	 */
+	private int getSliceIndex(int slice) {
+		
+		int index = Arrays.binarySearch(slices, slice);
+		
+		return index < 0 ? -index - 1 : index;
+	}
+	
+	/**
+	 * Reads rows from (inclusive) to to (exclusive) of the given columns, or
+	 * of all columns if no columns are given.
+	 */
+	public LocalizationTable read(int from, int to, String... names) {
+		
+		if (names.length == 0)
+			names = this.names;
+		
+		LocalizationTable table = LocalizationTable.withRows(to - from);
+		
+		for (String name: names) {
+			
+			Integer column = columnsByName.get(name);
+			
+			if (column == null)
+				throw new IllegalArgumentException("no column " + name);
+			
+			table.addColumn(name, readColumn(column, from, to, table.getCapacity()));
+		}
+		
+		return table;
+	}
+	
+	/**
+	 * Copies rows from (inclusive) to to (exclusive) of a column from the
+	 * mapped blocks into an array.
+	 */
+	private Object readColumn(int column, int from, int to, int capacity) {
+		
+		int type = types[column];
+		Object values = type == INT ? new int[capacity] : type == FLOAT ? new float[capacity] : new double[capacity];
+		
+		int block = Arrays.binarySearch(blockFirstRows, from);
+		
+		if (block < 0)
+			block = -block - 2;
+		
+		for (int row = from; row < to; block++) {
+			
+			int blockRow = row - blockFirstRows[block];
+			int rows = Math.min(blockSizes[block] - blockRow, to - row);
+			ByteBuffer buffer = getColumnBuffer(block, column);
+			
+			switch (type) {
+			case INT:
+				buffer.position(blockRow * 4);
+				buffer.asIntBuffer().get((int[])values, row - from, rows);
+				break;
+			case FLOAT:
+				buffer.position(blockRow * 4);
+				buffer.asFloatBuffer().get((float[])values, row - from, rows);
+				break;
+			default:
+				buffer.position(blockRow * 8);
+				buffer.asDoubleBuffer().get((double[])values, row - from, rows);
+				break;
+			}
+			
+			row += rows;
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Returns a view on the values of a column in a block.
+	 */
+	private ByteBuffer getColumnBuffer(int block, int column) {
+		
+		long offset = blockOffsets[block] + 8;
+		
+		for (int i = 0; i < column; i++)
+			offset += pad(blockSizes[block] * getSize(types[i]));
+		
+		int chunk = (int)(offset / CHUNK_SIZE);
+		int position = (int)(offset - chunk * CHUNK_SIZE);
+		
+		ByteBuffer buffer = chunks[chunk].duplicate();
+		buffer.position(position);
+		buffer.limit(position + blockSizes[block] * getSize(types[column]));
+		
+		return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private int getBlockLength(int rows) {
+		
+		int length = 8;
+		
+		for (int type: types)
+			length += pad(rows * getSize(type));
+		
+		return length;
+	}
+	
+	private static int getType(Column column) {
+		
+		if (column instanceof IntColumn)
+			return INT;
+		else if (column instanceof FloatColumn)
+			return FLOAT;
+		else
+			return DOUBLE;
+	}
+	
+	private static int getSize(int type) {
+		return type == DOUBLE ? 8 : 4;
+	}
+	
+	private static int pad(int length) {
+		return (length + 7) & ~7;
+	}
+	
+	private static ByteBuffer allocate(int length) {
+		return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		
+		ByteBuffer buffer = allocate(length);
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("unexpected end of localization file");
+		}
+		
+		buffer.flip();
+		
+		return buffer;
+	}
+	
+}
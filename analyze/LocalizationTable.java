@@ -0,0 +1,766 @@
+package analyze;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Table of localized peaks stored in primitive columns. Columns are obtained
+ * once by name (e.g. "x", "slice" or "trajectory") and then accessed by row,
+ * so that loops over many rows do not need to look up columns by name or box
+ * values as the results table does.
+ *
+ * A table that is sorted on a column (e.g. slice or trajectory) can be split
+ * into groups of rows with {@link #getGroups} and {@link #getRows}, which
+ * returns a view that shares the columns of the table instead of copying
+ * them. Views are only valid until rows are added to or deleted from the
+ * table they were taken from.
+ *
+ * Plugins that read the results table convert it with
+ * {@link #fromResultsTable} and write it back with {@link #toResultsTable}.
+ * Text columns and row labels of the results table are kept in
+ * {@link TextColumn}s, so they survive the round trip.
+ */
+public class LocalizationTable {
+	
+	/**
+	 * Columns that are read from a results table as integer columns (if all
+	 * their values are integers).
+	 */
+	private static final String[] integerColumns = {"slice", "trajectory", "trajectory_length", "cluster", "cluster_n", "roi"};
+	
+	/**
+	 * Name of the text column that holds the row labels of a results table.
+	 */
+	public static final String LABEL = "Label";
+	
+	public static abstract class Column {
+		
+		private final String name;
+		protected final int offset;
+		
+		private Column(String name, int offset) {
+			this.name = name;
+			this.offset = offset;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		public abstract double getDouble(int row);
+		public abstract void setDouble(int row, double value);
+		
+		abstract Column getView(int from);
+		abstract void setCapacity(int capacity);
+		
+		/**
+		 * Reorders the first size rows so that row i becomes the former row
+		 * order[i].
+		 */
+		abstract void reorder(int[] order, int size, int capacity);
+		
+	}
+	
+	public static final class DoubleColumn extends Column {
+		
+		private double[] values;
+		
+		private DoubleColumn(String name, double[] values, int offset) {
+			super(name, offset);
+			this.values = values;
+		}
+		
+		public double get(int row) {
+			return values[offset + row];
+		}
+		
+		public void set(int row, double value) {
+			values[offset + row] = value;
+		}
+		
+		@Override
+		public double getDouble(int row) {
+			return values[offset + row];
+		}
+		
+		@Override
+		public void setDouble(int row, double value) {
+			values[offset + row] = value;
+		}
+		
+		@Override
+		Column getView(int from) {
+			return new DoubleColumn(getName(), values, offset + from);
+		}
+		
+		@Override
+		void setCapacity(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+		
+		@Override
+		void reorder(int[] order, int size, int capacity) {
+			
+			double[] reordered = new double[capacity];
+			
+			for (int i = 0; i < size; i++)
+				reordered[i] = values[order[i]];
+			
+			values = reordered;
+		}
+		
+	}
+	
+	public static final class FloatColumn extends Column {
+		
+		private float[] values;
+		
+		private FloatColumn(String name, float[] values, int offset) {
+			super(name, offset);
+			this.values = values;
+		}
+		
+		public float get(int row) {
+			return values[offset + row];
+		}
+		
+		public void set(int row, float value) {
+			values[offset + row] = value;
+		}
+		
+		@Override
+		public double getDouble(int row) {
+			return values[offset + row];
+		}
+		
+		@Override
+		public void setDouble(int row, double value) {
+			values[offset + row] = (float)value;
+		}
+		
+		@Override
+		Column getView(int from) {
+			return new FloatColumn(getName(), values, offset + from);
+		}
+		
+		@Override
+		void setCapacity(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+		
+		@Override
+		void reorder(int[] order, int size, int capacity) {
+			
+			float[] reordered = new float[capacity];
+			
+			for (int i = 0; i < size; i++)
+				reordered[i] = values[order[i]];
+			
+			values = reordered;
+		}
+		
+	}
+	
+	public static final class IntColumn extends Column {
+		
+		private int[] values;
+		
+		private IntColumn(String name, int[] values, int offset) {
+			super(name, offset);
+			this.values = values;
+		}
+		
+		public int get(int row) {
+			return values[offset + row];
+		}
+		
+		public void set(int row, int value) {
+			values[offset + row] = value;
+		}
+		
+		@Override
+		public double getDouble(int row) {
+			return values[offset + row];
+		}
+		
+		@Override
+		public void setDouble(int row, double value) {
+			values[offset + row] = (int)value;
+		}
+		
+		@Override
+		Column getView(int from) {
+			return new IntColumn(getName(), values, offset + from);
+		}
+		
+		@Override
+		void setCapacity(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+		
+		@Override
+		void reorder(int[] order, int size, int capacity) {
+			
+			int[] reordered = new int[capacity];
+			
+			for (int i = 0; i < size; i++)
+				reordered[i] = values[order[i]];
+			
+			values = reordered;
+		}
+		
+	}
+	
+	/**
+	 * Column with the text cells of a results table column (or the row
+	 * labels). Text cells read as NaN, numeric cells keep their value.
+	 */
+	public static final class TextColumn extends Column {
+		
+		private String[] strings;
+		private double[] values;
+		
+		private TextColumn(String name, String[] strings, double[] values, int offset) {
+			super(name, offset);
+			this.strings = strings;
+			this.values = values;
+		}
+		
+		/**
+		 * Returns the text of a row, or null if the row holds a number.
+		 */
+		public String getString(int row) {
+			return strings[offset + row];
+		}
+		
+		public void setString(int row, String value) {
+			strings[offset + row] = value;
+			values[offset + row] = Double.NaN;
+		}
+		
+		@Override
+		public double getDouble(int row) {
+			return values[offset + row];
+		}
+		
+		@Override
+		public void setDouble(int row, double value) {
+			strings[offset + row] = null;
+			values[offset + row] = value;
+		}
+		
+		@Override
+		Column getView(int from) {
+			return new TextColumn(getName(), strings, values, offset + from);
+		}
+		
+		@Override
+		void setCapacity(int capacity) {
+			strings = Arrays.copyOf(strings, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		
+		@Override
+		void reorder(int[] order, int size, int capacity) {
+			
+			String[] reorderedStrings = new String[capacity];
+			double[] reorderedValues = new double[capacity];
+			
+			for (int i = 0; i < size; i++) {
+				reorderedStrings[i] = strings[order[i]];
+				reorderedValues[i] = values[order[i]];
+			}
+			
+			strings = reorderedStrings;
+			values = reorderedValues;
+		}
+		
+	}
+	
+	private final List<Column> columns = new ArrayList<Column>();
+	private final Map<String, Column> columnsByName = new HashMap<String, Column>();
+	private final boolean isView;
+	private int size = 0;
+	private int capacity;
+	
+	public LocalizationTable() {
+		this(16);
+	}
+	
+	public LocalizationTable(int capacity) {
+		this.capacity = Math.max(capacity, 1);
+		this.isView = false;
+	}
+	
+	private LocalizationTable(LocalizationTable table, int from, int to) {
+		
+		capacity = to - from;
+		size = to - from;
+		isView = true;
+		
+		for (Column column: table.columns)
+			addColumn(column.getView(from));
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Adds a row (with all values set to 0) and returns its index.
+	 */
+	public int addRow() {
+		
+		checkNotView();
+		
+		if (size == capacity) {
+			
+			capacity *= 2;
+			
+			for (Column column: columns)
+				column.setCapacity(capacity);
+		}
+		
+		return size++;
+	}
+	
+	public boolean hasColumn(String name) {
+		return columnsByName.containsKey(name);
+	}
+	
+	/**
+	 * Returns the column with the given name, or null if there is none.
+	 */
+	public Column getColumn(String name) {
+		return columnsByName.get(name);
+	}
+	
+	public String[] getColumnNames() {
+		
+		String[] names = new String[columns.size()];
+		
+		for (int i = 0; i < names.length; i++)
+			names[i] = columns.get(i).getName();
+		
+		return names;
+	}
+	
+	/**
+	 * Returns the column with the given name as a double column. A column of
+	 * another type is converted (after which handles to the old column should
+	 * no longer be used).
+	 * 
+	 * @throws IllegalArgumentException if there is no such column
+	 */
+	public DoubleColumn getDoubleColumn(String name) {
+		return toDoubleColumn(name, getExistingColumn(name));
+	}
+	
+	/**
+	 * Same as {@link #getDoubleColumn}, but adds a column filled with zeros if
+	 * there is no such column.
+	 */
+	public DoubleColumn addDoubleColumn(String name) {
+		return toDoubleColumn(name, columnsByName.get(name));
+	}
+	
+	/**
+	 * Same as {@link #getDoubleColumn} for a float column.
+	 */
+	public FloatColumn getFloatColumn(String name) {
+		return toFloatColumn(name, getExistingColumn(name));
+	}
+	
+	/**
+	 * Same as {@link #addDoubleColumn} for a float column.
+	 */
+	public FloatColumn addFloatColumn(String name) {
+		return toFloatColumn(name, columnsByName.get(name));
+	}
+	
+	/**
+	 * Same as {@link #getDoubleColumn} for an integer column, values of a
+	 * converted column are truncated.
+	 */
+	public IntColumn getIntColumn(String name) {
+		return toIntColumn(name, getExistingColumn(name));
+	}
+	
+	/**
+	 * Same as {@link #addDoubleColumn} for an integer column.
+	 */
+	public IntColumn addIntColumn(String name) {
+		return toIntColumn(name, columnsByName.get(name));
+	}
+	
+	private Column getExistingColumn(String name) {
+		
+		Column column = columnsByName.get(name);
+		
+		if (column == null)
+			throw new IllegalArgumentException("\"" + name + "\" column not found");
+		
+		return column;
+	}
+	
+	private DoubleColumn toDoubleColumn(String name, Column column) {
+		
+		if (column instanceof DoubleColumn)
+			return (DoubleColumn)column;
+		
+		double[] values = new double[capacity];
+		
+		for (int i = 0; column != null && i < size; i++)
+			values[i] = column.getDouble(i);
+		
+		return (DoubleColumn)setColumn(column, new DoubleColumn(name, values, 0));
+	}
+	
+	private FloatColumn toFloatColumn(String name, Column column) {
+		
+		if (column instanceof FloatColumn)
+			return (FloatColumn)column;
+		
+		float[] values = new float[capacity];
+		
+		for (int i = 0; column != null && i < size; i++)
+			values[i] = (float)column.getDouble(i);
+		
+		return (FloatColumn)setColumn(column, new FloatColumn(name, values, 0));
+	}
+	
+	private IntColumn toIntColumn(String name, Column column) {
+		
+		if (column instanceof IntColumn)
+			return (IntColumn)column;
+		
+		int[] values = new int[capacity];
+		
+		for (int i = 0; column != null && i < size; i++)
+			values[i] = (int)column.getDouble(i);
+		
+		return (IntColumn)setColumn(column, new IntColumn(name, values, 0));
+	}
+	
+	private Column setColumn(Column old, Column column) {
+		
+		checkNotView();
+		
+		if (old == null)
+			addColumn(column);
+		else {
+			columns.set(columns.indexOf(old), column);
+			columnsByName.put(column.getName(), column);
+		}
+		
+		return column;
+	}
+	
+	private void addColumn(Column column) {
+		columns.add(column);
+		columnsByName.put(column.getName(), column);
+	}
+	
+	/**
+	 * Creates a table of size rows without columns, to which columns are
+	 * added with {@link #addColumn(String, Object)}. Used to read tables from
+	 * a file.
+	 */
+	static LocalizationTable withRows(int size) {
+		
+		LocalizationTable table = new LocalizationTable(size);
+		table.size = size;
+		
+		return table;
+	}
+	
+	/**
+	 * Adds a column of values, a double[], float[] or int[] array of at least
+	 * the capacity of the table.
+	 */
+	void addColumn(String name, Object values) {
+		
+		checkNotView();
+		
+		if (values instanceof double[])
+			addColumn(new DoubleColumn(name, (double[])values, 0));
+		else if (values instanceof float[])
+			addColumn(new FloatColumn(name, (float[])values, 0));
+		else
+			addColumn(new IntColumn(name, (int[])values, 0));
+	}
+	
+	int getCapacity() {
+		return capacity;
+	}
+	
+	private void checkNotView() {
+		if (isView)
+			throw new IllegalStateException("a view of a localization table can not be changed in size or type");
+	}
+	
+	/**
+	 * Returns the rows from (inclusive) to (exclusive) as a table that shares
+	 * its columns with this table.
+	 */
+	public LocalizationTable getRows(int from, int to) {
+		return new LocalizationTable(this, from, to);
+	}
+	
+	/**
+	 * Determines the groups of consecutive rows that have the same value in
+	 * the given column. Group i consists of rows offsets[i] up to
+	 * offsets[i + 1], so there is one more offset than there are groups.
+	 */
+	public int[] getGroups(String name) {
+		
+		Column column = columnsByName.get(name);
+		int[] offsets = new int[size + 1];
+		int groups = 0;
+		
+		for (int row = 1; row < size; row++) {
+			if (column.getDouble(row) != column.getDouble(row - 1))
+				offsets[++groups] = row;
+		}
+		
+		if (size > 0)
+			offsets[++groups] = size;
+		
+		return Arrays.copyOf(offsets, groups + 1);
+	}
+	
+	/**
+	 * Sorts the rows in ascending order on the given columns, the first
+	 * column being the most significant. Columns that do not exist are
+	 * ignored and rows with equal values keep their order.
+	 */
+	public void sort(String... names) {
+		
+		checkNotView();
+		
+		List<Column> keys = new ArrayList<Column>();
+		
+		for (String name: names) {
+			if (columnsByName.containsKey(name))
+				keys.add(columnsByName.get(name));
+		}
+		
+		int[] order = new int[size];
+		
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		
+		sort(order, order.clone(), 0, size, keys.toArray(new Column[keys.size()]));
+		
+		for (Column column: columns)
+			column.reorder(order, size, capacity);
+	}
+	
+	/**
+	 * Stable merge sort of order[from, to) using buffer (which should have
+	 * the same contents) as scratch space.
+	 */
+	private static void sort(int[] order, int[] buffer, int from, int to, Column[] keys) {
+		
+		if (to - from < 2)
+			return;
+		
+		int middle = (from + to) >>> 1;
+		
+		// sort both halves into buffer, then merge them back into order
+		sort(buffer, order, from, middle, keys);
+		sort(buffer, order, middle, to, keys);
+		
+		for (int i = from, left = from, right = middle; i < to; i++) {
+			if (right >= to || (left < middle && compare(buffer[left], buffer[right], keys) <= 0))
+				order[i] = buffer[left++];
+			else
+				order[i] = buffer[right++];
+		}
+	}
+	
+	private static int compare(int row1, int row2, Column[] keys) {
+		
+		for (Column key: keys) {
+			
+			int difference = Double.compare(key.getDouble(row1), key.getDouble(row2));
+			
+			if (difference != 0)
+				return difference;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Deletes all rows for which delete is true.
+	 */
+	public void deleteRows(boolean[] delete) {
+		
+		checkNotView();
+		
+		int[] order = new int[size];
+		int n = 0;
+		
+		for (int row = 0; row < size; row++) {
+			if (!delete[row])
+				order[n++] = row;
+		}
+		
+		for (Column column: columns)
+			column.reorder(order, n, capacity);
+		
+		size = n;
+	}
+	
+	/**
+	 * Copies all columns of a results table, each numeric column is read at
+	 * once instead of value by value. Columns with text cells and the row
+	 * labels are copied into text columns.
+	 */
+	public static LocalizationTable fromResultsTable(ResultsTable table) {
+		
+		LocalizationTable localizations = new LocalizationTable(table.getCounter());
+		localizations.size = table.getCounter();
+		
+		String[] labels = null;
+		
+		for (int row = 0; row < localizations.size; row++) {
+			
+			String label = table.getLabel(row);
+			
+			if (label != null) {
+				
+				if (labels == null)
+					labels = new String[localizations.capacity];
+				
+				labels[row] = label;
+			}
+			
+		}
+		
+		if (labels != null) {
+			
+			double[] values = new double[localizations.capacity];
+			Arrays.fill(values, Double.NaN);
+			
+			localizations.addColumn(new TextColumn(LABEL, labels, values, 0));
+		}
+		
+		for (int i = 0; i <= table.getLastColumn(); i++) {
+			
+			if (!table.columnExists(i))
+				continue;
+			
+			String name = table.getColumnHeading(i);
+			double[] values = Arrays.copyOf(table.getColumnAsDoubles(i), localizations.capacity);
+			String[] strings = getStrings(table, i, values, localizations.size, localizations.capacity);
+			
+			if (strings != null)
+				localizations.addColumn(new TextColumn(name, strings, values, 0));
+			else if (isIntegerColumn(name, values, localizations.size)) {
+				
+				int[] integers = new int[localizations.capacity];
+				
+				for (int row = 0; row < localizations.size; row++)
+					integers[row] = (int)values[row];
+				
+				localizations.addColumn(new IntColumn(name, integers, 0));
+			}
+			else
+				localizations.addColumn(new DoubleColumn(name, values, 0));
+		}
+		
+		return localizations;
+	}
+	
+	/**
+	 * Returns the text cells of a results table column (null for numeric
+	 * cells), or null if the column holds no text. Text cells read as NaN, so
+	 * only those have to be looked at.
+	 */
+	private static String[] getStrings(ResultsTable table, int column, double[] values, int size, int capacity) {
+		
+		String[] strings = null;
+		
+		for (int row = 0; row < size; row++) {
+			
+			if (!Double.isNaN(values[row]))
+				continue;
+			
+			String string = table.getStringValue(column, row);
+			
+			if (string != null && !string.equals("NaN")) {
+				
+				if (strings == null)
+					strings = new String[capacity];
+				
+				strings[row] = string;
+			}
+			
+		}
+		
+		return strings;
+	}
+	
+	private static boolean isIntegerColumn(String name, double[] values, int size) {
+		
+		if (!Arrays.asList(integerColumns).contains(name))
+			return false;
+		
+		for (int row = 0; row < size; row++) {
+			if (values[row] != (int)values[row])
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Replaces the contents of a results table by the columns of this table,
+	 * including its text columns and row labels.
+	 */
+	public void toResultsTable(ResultsTable table) {
+		
+		table.reset();
+		
+		int[] indices = new int[columns.size()];
+		
+		for (int i = 0; i < indices.length; i++) {
+			
+			Column column = columns.get(i);
+			
+			if (column instanceof TextColumn && column.getName().equals(LABEL))
+				indices[i] = -1;
+			else
+				indices[i] = table.getFreeColumn(column.getName());
+		}
+		
+		for (int row = 0; row < size; row++) {
+			
+			table.incrementCounter();
+			
+			for (int i = 0; i < indices.length; i++) {
+				
+				Column column = columns.get(i);
+				String string = column instanceof TextColumn ? ((TextColumn)column).getString(row) : null;
+				
+				if (indices[i] < 0) {
+					if (string != null)
+						table.setLabel(string, row);
+				}
+				else if (string != null)
+					table.setValue(indices[i], row, string);
+				else
+					table.addValue(indices[i], column.getDouble(row));
+			}
+		}
+		
+	}
+	
+}
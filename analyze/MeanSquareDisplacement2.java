@@ -3,7 +3,8 @@ package analyze;
 import java.awt.Color;
 import java.util.ArrayList;
 
-import util.ResultsTableSorter;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.IntColumn;
 import ij.IJ;
 import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
@@ -71,55 +72,28 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		if (maxFitTime == 0)
 			maxFitTime = Double.MAX_VALUE;
 		
-		ResultsTable sdTable = new ResultsTable();
-		sdTable.setPrecision(Analyzer.getPrecision());
+		LocalizationTable sdTable = getSquareDisplacements(LocalizationTable.fromResultsTable(table));
 		
-		for (int row1 = 0; row1 < table.getCounter(); row1++) {
-			
-			double x1 = table.getValue("x", row1);
-			double y1 = table.getValue("y", row1);
-			int slice1 = (int)table.getValue("slice", row1);
-			int trajectory1 = (int)table.getValue("trajectory", row1);
-			
-			for (int row2 = row1 + 1; row2 < table.getCounter(); row2++) {
-				
-				double x2 = table.getValue("x", row2);
-				double y2 = table.getValue("y", row2);
-				int slice2 = (int)table.getValue("slice", row2);
-				int trajectory2 = (int)table.getValue("trajectory", row2);
-				
-				if (trajectory1 != trajectory2)
-					break;
-				
-				double dx = (x2 - x1) * pixelSize;
-				double dy = (y2 - y1) * pixelSize;
-				double dt = (slice2 - slice1) * timeInterval;	// delta t
-				double sd = dx * dx + dy * dy;					// square displacement
-				
-				sdTable.incrementCounter();
-				sdTable.addValue("trajectory", averageTrajectories ? -1 : trajectory1);
-				sdTable.addValue("dt", dt);
-				sdTable.addValue("sd", sd);
-				
-			}
-			
-		}
-		
-		ResultsTableSorter.sort(sdTable, true, "trajectory", "dt");
-		sdTable.show("square displacements");
+		ResultsTable sdResults = new ResultsTable();
+		sdResults.setPrecision(Analyzer.getPrecision());
+		sdTable.toResultsTable(sdResults);
+		sdResults.show("square displacements");
 		
+		IntColumn trajectoryColumn = sdTable.getIntColumn("trajectory");
+		DoubleColumn dtColumn = sdTable.getDoubleColumn("dt");
+		DoubleColumn sdColumn = sdTable.getDoubleColumn("sd");
 		
 		// find the start and end of each group (same dt and trajectory) that we need to average
 		// we need to calculate the mean square displacement for each dt, trajectory individually
 		ArrayList<Integer> offsets = new ArrayList<Integer>();
 		offsets.add(0);
 		
-		for (int row = 0; row < sdTable.getCounter(); row++) {
+		for (int row = 0; row < sdTable.size(); row++) {
 			
-			double dt = sdTable.getValue("dt", row);
-			int trajectory = (int)sdTable.getValue("trajectory", row);
+			double dt = dtColumn.get(row);
+			int trajectory = trajectoryColumn.get(row);
 			
-			if (row + 1 >= sdTable.getCounter() || dt != sdTable.getValue("dt", row + 1) || trajectory != sdTable.getValue("trajectory", row + 1)) {
+			if (row + 1 >= sdTable.size() || dt != dtColumn.get(row + 1) || trajectory != trajectoryColumn.get(row + 1)) {
 				offsets.add(row + 1);
 			}
 			
@@ -137,14 +111,14 @@ public class MeanSquareDisplacement2 implements PlugIn {
 			double mean = 0.0;
 			
 			for (int row = from; row < to; row++)
-				mean += sdTable.getValue("sd", row);
+				mean += sdColumn.get(row);
 			
 			mean /= (to - from);
 			
 			double stdDev = 0.0;
 			
 			for (int row = from; row < to; row++) {
-				double d = sdTable.getValue("sd", row) - mean;
+				double d = sdColumn.get(row) - mean;
 				stdDev += d * d;
 			}
 			
@@ -153,8 +127,8 @@ public class MeanSquareDisplacement2 implements PlugIn {
 			if (to - from > minimumNumberOfPoints) {
 				msdTable.incrementCounter();
 			
-				msdTable.addValue("trajectory", sdTable.getValue("trajectory", from));
-				msdTable.addValue("dt", sdTable.getValue("dt", from));
+				msdTable.addValue("trajectory", trajectoryColumn.get(from));
+				msdTable.addValue("dt", dtColumn.get(from));
 				msdTable.addValue("msd", mean);
 				msdTable.addValue("stdDev", stdDev);
 				msdTable.addValue("points", to - from);
@@ -279,4 +253,58 @@ public class MeanSquareDisplacement2 implements PlugIn {
 		dTable.show("Diffusion Coefficients");
 	}
 
+	/**
+	 * Determines the square displacement between every pair of peaks of the
+	 * same trajectory. The table should be sorted on trajectory and slice, as
+	 * done by the particle tracker. The result has the columns trajectory, dt
+	 * and sd and is sorted on trajectory and dt.
+	 */
+	public LocalizationTable getSquareDisplacements(LocalizationTable table) {
+		
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		IntColumn slices = table.getIntColumn("slice");
+		IntColumn trajectories = table.getIntColumn("trajectory");
+		
+		LocalizationTable sdTable = new LocalizationTable();
+		IntColumn sdTrajectories = sdTable.addIntColumn("trajectory");
+		DoubleColumn dts = sdTable.addDoubleColumn("dt");
+		DoubleColumn sds = sdTable.addDoubleColumn("sd");
+		
+		for (int row1 = 0; row1 < table.size(); row1++) {
+			
+			double x1 = xs.get(row1);
+			double y1 = ys.get(row1);
+			int slice1 = slices.get(row1);
+			int trajectory1 = trajectories.get(row1);
+			
+			for (int row2 = row1 + 1; row2 < table.size(); row2++) {
+				
+				double x2 = xs.get(row2);
+				double y2 = ys.get(row2);
+				int slice2 = slices.get(row2);
+				int trajectory2 = trajectories.get(row2);
+				
+				if (trajectory1 != trajectory2)
+					break;
+				
+				double dx = (x2 - x1) * pixelSize;
+				double dy = (y2 - y1) * pixelSize;
+				double dt = (slice2 - slice1) * timeInterval;	// delta t
+				double sd = dx * dx + dy * dy;					// square displacement
+				
+				int row = sdTable.addRow();
+				sdTrajectories.set(row, averageTrajectories ? -1 : trajectory1);
+				dts.set(row, dt);
+				sds.set(row, sd);
+				
+			}
+			
+		}
+		
+		sdTable.sort("trajectory", "dt");
+		
+		return sdTable;
+	}
+
 }
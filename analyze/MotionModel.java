@@ -0,0 +1,131 @@
+package analyze;
+
+/**
+ * Constant velocity Kalman filters that predict where the particle of a
+ * trajectory will be in a later slice. The x and y axis are filtered
+ * independently, each with a state of a position and a velocity. The state
+ * after each peak is kept by row, so that a trajectory continues from the
+ * state of its last peak.
+ *
+ * The velocity may change by about velocityNoise pixels per slice between
+ * slices. A trajectory that consists of a single peak has a velocity of 0
+ * with a standard deviation of initialVelocityError, and the measurement
+ * noise of a peak is its localization error (0 if it is not known).
+ */
+class MotionModel {
+	
+	private final Axis xAxis;
+	private final Axis yAxis;
+	private final boolean[] isStarted;
+	
+	public MotionModel(int rows, double velocityNoise, double initialVelocityError) {
+		xAxis = new Axis(rows, velocityNoise * velocityNoise, initialVelocityError * initialVelocityError);
+		yAxis = new Axis(rows, velocityNoise * velocityNoise, initialVelocityError * initialVelocityError);
+		isStarted = new boolean[rows];
+	}
+	
+	public boolean isStarted(int row) {
+		return isStarted[row];
+	}
+	
+	/**
+	 * Starts a trajectory at the peak of a row, with the variance of its
+	 * localization error in x and y.
+	 */
+	public void start(int row, double x, double y, double varianceX, double varianceY) {
+		xAxis.start(row, x, varianceX);
+		yAxis.start(row, y, varianceY);
+		isStarted[row] = true;
+	}
+	
+	/**
+	 * Stores the predicted position of the particle of row gap slices later
+	 * and the variance of the prediction in prediction, as {x, y, variance x,
+	 * variance y}.
+	 */
+	public void predict(int row, int gap, double[] prediction) {
+		prediction[0] = xAxis.predict(row, gap);
+		prediction[1] = yAxis.predict(row, gap);
+		prediction[2] = xAxis.getVariance(row, gap);
+		prediction[3] = yAxis.getVariance(row, gap);
+	}
+	
+	/**
+	 * Continues the trajectory of row1 with the peak of row2, gap slices
+	 * later.
+	 */
+	public void update(int row1, int row2, int gap, double x, double y, double varianceX, double varianceY) {
+		xAxis.update(row1, row2, gap, x, varianceX);
+		yAxis.update(row1, row2, gap, y, varianceY);
+		isStarted[row2] = true;
+	}
+	
+	/**
+	 * The state of one axis for every row: position, velocity and their
+	 * covariance matrix {pp, pv; pv, vv}.
+	 */
+	private static class Axis {
+		
+		private final double q;
+		private final double initialVv;
+		private final double[] positions;
+		private final double[] velocities;
+		private final double[] pp;
+		private final double[] pv;
+		private final double[] vv;
+		
+		public Axis(int rows, double q, double initialVv) {
+			this.q = q;
+			this.initialVv = initialVv;
+			positions = new double[rows];
+			velocities = new double[rows];
+			pp = new double[rows];
+			pv = new double[rows];
+			vv = new double[rows];
+		}
+		
+		public void start(int row, double position, double variance) {
+			positions[row] = position;
+			velocities[row] = 0;
+			pp[row] = variance;
+			pv[row] = 0;
+			vv[row] = initialVv;
+		}
+		
+		public double predict(int row, int gap) {
+			return positions[row] + gap * velocities[row];
+		}
+		
+		/**
+		 * Returns the variance of the predicted position, the process noise
+		 * is that of a velocity that changes by a random amount each slice.
+		 */
+		public double getVariance(int row, int gap) {
+			return pp[row] + 2 * gap * pv[row] + gap * gap * vv[row] + q * gap * gap * gap * gap / 4;
+		}
+		
+		public void update(int row1, int row2, int gap, double position, double variance) {
+			
+			// predicted state and covariance
+			double p = predict(row1, gap);
+			double v = velocities[row1];
+			double ppPredicted = getVariance(row1, gap);
+			double pvPredicted = pv[row1] + gap * vv[row1] + q * gap * gap * gap / 2;
+			double vvPredicted = vv[row1] + q * gap * gap;
+			
+			// the variance of the innovation can only be 0 without any noise
+			double s = Math.max(ppPredicted + variance, Double.MIN_NORMAL);
+			double kp = ppPredicted / s;
+			double kv = pvPredicted / s;
+			double innovation = position - p;
+			
+			positions[row2] = p + kp * innovation;
+			velocities[row2] = v + kv * innovation;
+			pp[row2] = (1 - kp) * ppPredicted;
+			pv[row2] = (1 - kp) * pvPredicted;
+			vv[row2] = vvPredicted - kv * pvPredicted;
+		}
+		
+	}
+	
+}
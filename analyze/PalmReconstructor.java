@@ -1,13 +1,17 @@
 package analyze;
 
+import java.io.IOException;
+
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
 import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 import ij.process.ImageProcessor;
+import analyze.LocalizationTable.DoubleColumn;
 
 /**
  * The PALM (Photo Activated Localization Microscopy) reconstructor plugin
@@ -44,32 +48,77 @@ public class PalmReconstructor implements PlugIn {
 		
 	};
 	
-	private ResultsTable table;
+	private LocalizationTable table;
 	
 	private double magnification = 4;
 	private double pixelSize = 1;
 	private Type type;
 	
+	/**
+	 * Reconstructs the peaks of the results table or, with the argument
+	 * "file", the peaks of a localization file. Only the x, y and error
+	 * columns are read from the file, the other columns are never copied out
+	 * of its mapping.
+	 */
 	@Override
-	public void run(String arg0) {
-
-		table = Analyzer.getResultsTable();
+	public void run(String arg) {
+		
+		if (arg.equals("file")) {
+			
+			OpenDialog openDialog = new OpenDialog("Open Localizations", null);
+			
+			if (openDialog.getFileName() == null)
+				return;
+			
+			try {
+				
+				LocalizationFile file = LocalizationFile.open(openDialog.getPath());
+				
+				for (String name: new String[] {"x", "y", "error_x", "error_y"}) {
+					if (!file.hasColumn(name)) {
+						IJ.error("The localization file has no " + name + " column!");
+						return;
+					}
+				}
+				
+				table = file.read("x", "y", "error_x", "error_y");
+			}
+			catch (IOException e) {
+				IJ.error("PALM Reconstructor", e.getMessage());
+				return;
+			}
+			
+		}
+		else {
+			
+			ResultsTable results = Analyzer.getResultsTable();
+			
+			if (results == null || results.getCounter() == 0) {
+				IJ.error("This plugin requires a results table!");
+				return;
+			}
+			
+			table = LocalizationTable.fromResultsTable(results);
+		}
 		
-		if (table == null || table.getCounter() == 0) {
-			IJ.error("This plugin requires a results table!");
+		if (table.size() == 0) {
+			IJ.error("There are no peaks to reconstruct!");
 			return;
 		}
 		
-		double xMin = table.getValue("x", 0);
-		double yMin = table.getValue("y", 0);
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		
+		double xMin = xs.get(0);
+		double yMin = ys.get(0);
 		double xMax = xMin;
 		double yMax = yMin;
 		
 		// get minimum and maximum x and y values from the results table
-		for (int row = 1; row < table.getCounter(); row++) {
+		for (int row = 1; row < table.size(); row++) {
 			
-			double x = table.getValue("x", row);
-			double y = table.getValue("y", row);
+			double x = xs.get(row);
+			double y = ys.get(row);
 			
 			if (x < xMin) xMin = x;
 			if (y < yMin) yMin = y;
@@ -106,6 +155,17 @@ public class PalmReconstructor implements PlugIn {
 		pixelSize = dialog.getNextNumber();
 		type = Type.valueOf(Type.class, dialog.getNextChoice());
 		
+		ImagePlus imp = reconstruct(table, xMin, yMin, xMax, yMax);
+		imp.show();
+		IJ.run("Red Hot");
+	}
+	
+	/**
+	 * Draws the peaks of a table that lie in the given area into a new image,
+	 * using the current magnification, pixel size and type.
+	 */
+	public ImagePlus reconstruct(LocalizationTable table, double xMin, double yMin, double xMax, double yMax) {
+		
 		int width = (int)((xMax - xMin) * magnification);
 		int height = (int)((yMax - yMin) * magnification);
 		
@@ -113,12 +173,17 @@ public class PalmReconstructor implements PlugIn {
 		ImagePlus imp = IJ.createImage("reconstruction", "32-bit", width, height, 1);
 		ImageProcessor ip = imp.getProcessor();
 		
-		for (int row = 0; row < table.getCounter(); row++) {
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		DoubleColumn errorXs = table.getDoubleColumn("error_x");
+		DoubleColumn errorYs = table.getDoubleColumn("error_y");
+		
+		for (int row = 0; row < table.size(); row++) {
 			
-			double x = table.getValue("x", row);
-			double y = table.getValue("y", row);
-			double errorX = table.getValue("error_x", row) * magnification;
-			double errorY = table.getValue("error_y", row) * magnification;
+			double x = xs.get(row);
+			double y = ys.get(row);
+			double errorX = errorXs.get(row) * magnification;
+			double errorY = errorYs.get(row) * magnification;
 			
 			int x0 = (int)((x - xMin) * magnification);
 			int y0 = (int)((y - yMin) * magnification);
@@ -143,7 +208,7 @@ public class PalmReconstructor implements PlugIn {
 			}
 			
 			
-			IJ.showProgress(row, table.getCounter());
+			IJ.showProgress(row, table.size());
 			
 			
 		}
@@ -156,8 +221,8 @@ public class PalmReconstructor implements PlugIn {
 		c.pixelWidth *= pixelSize;
 		c.pixelHeight *= pixelSize;
 		c.setUnit("nm");
-		imp.show();
-		IJ.run("Red Hot");
+		
+		return imp;
 	}
 	
 	public static double normalDistribution(double x, double y, double sigmaX, double sigmaY) {
@@ -1,20 +1,21 @@
 package analyze;
 
 import java.awt.Polygon;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import ij.IJ;
+import ij.Prefs;
 import ij.gui.GenericDialog;
 import ij.gui.PolygonRoi;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.RoiManager;
-import util.ResultsTableSorter;
+import util.Parameters;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.IntColumn;
 
 /**
  * This plugin tracks peaks in a movie. The plugin requires  a table with
@@ -33,10 +34,21 @@ import util.ResultsTableSorter;
  */
 public class ParticleTracker implements PlugIn {
 
-	private int lookAhead = 1;
-	private double maxStepSize = 8;
-	private boolean showTrajectories = true;
-	private boolean keepNonTrajectories = false;
+	private int lookAhead = Parameters.getInt("ParticleTracker.lookAhead", 1);
+	private double maxStepSize = Parameters.getDouble("ParticleTracker.maxStepSize", 8);
+	private boolean showTrajectories = Parameters.getBoolean("ParticleTracker.showTrajectories", true);
+	private boolean keepNonTrajectories = Parameters.getBoolean("ParticleTracker.keepNonTrajectories", false);
+	private boolean isOptimalLinking = Parameters.getBoolean("ParticleTracker.optimalLinking", false);
+	private boolean isMotionModel = Parameters.getBoolean("ParticleTracker.motionModel", false);
+	private double velocityNoise = Parameters.getDouble("ParticleTracker.velocityNoise", 1);
+	private double gate = Parameters.getDouble("ParticleTracker.gate", 3);
+	
+	// slices of which the possible links are found at once, and per task
+	private static final int WINDOW_SLICES = 1024;
+	private static final int BLOCK_SLICES = 8;
+	
+	// possible links are found in parallel by a pool shared by all instances
+	private static final ForkJoinPool pool = new ForkJoinPool(Math.max(Prefs.getThreads(), 1));
 	
 	@Override
 	public void run(String arg0) {
@@ -53,6 +65,10 @@ public class ParticleTracker implements PlugIn {
 		dialog.addNumericField("max_step_size (in pixels)", maxStepSize, 2);
 		dialog.addCheckbox("show_trajectories", showTrajectories);
 		dialog.addCheckbox("keep_non_trajectories", keepNonTrajectories);
+		dialog.addCheckbox("optimal_linking (for dense movies)", isOptimalLinking);
+		dialog.addCheckbox("predict_motion (for directed motion)", isMotionModel);
+		dialog.addNumericField("velocity_noise (in pixels per slice)", velocityNoise, 2);
+		dialog.addNumericField("gate (in standard deviations)", gate, 2);
 		dialog.showDialog();
 		
 		if (dialog.wasCanceled())
@@ -62,108 +78,168 @@ public class ParticleTracker implements PlugIn {
 		maxStepSize = dialog.getNextNumber();
 		showTrajectories = dialog.getNextBoolean();
 		keepNonTrajectories = dialog.getNextBoolean();
+		isOptimalLinking = dialog.getNextBoolean();
+		isMotionModel = dialog.getNextBoolean();
+		velocityNoise = dialog.getNextNumber();
+		gate = dialog.getNextNumber();
 		
-		// sort on slice
-		ResultsTableSorter.sort(table, true, "slice");
+		LocalizationTable localizations = LocalizationTable.fromResultsTable(table);
+		track(localizations);
 		
-		// initialize trajectory column and set step size to 0
-		for (int row = 0; row < table.getCounter(); row++) {
-			table.setValue("trajectory", row, -1);
-			table.setValue("step_size", row, 0);
+		if (showTrajectories && localizations.size() > 0) {
+			
+			RoiManager roiManager = RoiManager.getInstance();
+			
+			if (roiManager == null)
+				roiManager = new RoiManager();
+			
+			DoubleColumn xs = localizations.getDoubleColumn("x");
+			DoubleColumn ys = localizations.getDoubleColumn("y");
+			IntColumn trajectories = localizations.getIntColumn("trajectory");
+			
+			Polygon poly = new Polygon();
+			double x = xs.get(0);
+			double y = ys.get(0);
+			poly.addPoint((int)x, (int)y);
+			
+			for (int row = 1; row < localizations.size(); row++) {
+
+				x = xs.get(row);
+				y = ys.get(row);
+
+				if (trajectories.get(row) == trajectories.get(row - 1)) {
+					poly.addPoint((int)x, (int)y);
+				}
+				else {
+					roiManager.addRoi(new PolygonRoi(poly, PolygonRoi.POLYLINE));
+					
+					poly = new Polygon();
+					poly.addPoint((int)x, (int)y);
+				}
+			}
+			
+			roiManager.addRoi(new PolygonRoi(poly, PolygonRoi.POLYLINE));
+			roiManager.run("Show All");
+			
 		}
 		
-		// determine which rows belong to which slice
-		ArrayList<Integer> offsets = new ArrayList<Integer>();
-		offsets.add(0);
+		localizations.toResultsTable(table);
+		table.show("Results");
 		
-		for (int row = 1; row < table.getCounter(); row++) {
-			int s0 = (int)table.getValue("slice", row - 1);
-			int s1 = (int)table.getValue("slice", row);
-			
-			if (s0 != s1)
-				offsets.add(row);
-		}
+	}
+	
+	/**
+	 * Links the peaks of a table into trajectories. The table is sorted on
+	 * trajectory and slice afterwards.
+	 * 
+	 * By default the possible links of a slice are taken greedily, the links
+	 * to the nearest slice and the shortest links first. With optimal linking
+	 * the links of a slice are chosen such that the sum of the squared step
+	 * sizes is minimal (see {@link #getOptimalLinks}) and peaks that were
+	 * already linked to from an earlier slice are not linked to again.
+	 * 
+	 * With the motion model the position of each trajectory in the next
+	 * slices is predicted from its velocity (see {@link MotionModel}) and
+	 * only peaks close to the prediction are considered, which allows a large
+	 * max step size for particles that move fast in a constant direction
+	 * (see {@link #getPredictedLinks}).
+	 */
+	public void track(LocalizationTable table) {
+		
+		// sort on slice
+		table.sort("slice");
 		
-		offsets.add(table.getCounter());
+		IntColumn slices = table.getIntColumn("slice");
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		IntColumn trajectories = table.addIntColumn("trajectory");
+		DoubleColumn stepSizes = table.addDoubleColumn("step_size");
+		DoubleColumn dxs = table.addDoubleColumn("dx");
+		DoubleColumn dys = table.addDoubleColumn("dy");
+		DoubleColumn displacements = table.addDoubleColumn("displacement_sq");
+		IntColumn trajectoryLengths = table.addIntColumn("trajectory_length");
 		
+		// initialize trajectory column and set step size to 0
+		for (int row = 0; row < table.size(); row++) {
+			trajectories.set(row, -1);
+			stepSizes.set(row, 0);
+		}
+		
+		// determine which rows belong to which slice
+		int[] offsets = table.getGroups("slice");
 		
 		// find all trajectories
 		int trajectoryCount = 0;
+		boolean[] hasPredecessor = new boolean[table.size()];
+		boolean[] linked = new boolean[table.size()];
+		
+		// predictions depend on the links of earlier slices, so with the
+		// motion model the possible links are found slice by slice
+		MotionModel motionModel = isMotionModel ? new MotionModel(table.size(), velocityNoise, maxStepSize / gate) : null;
+		DoubleColumn errorXs = table.hasColumn("error_x") ? table.getDoubleColumn("error_x") : null;
+		DoubleColumn errorYs = table.hasColumn("error_y") ? table.getDoubleColumn("error_y") : null;
+		Grid[] grids = new Grid[offsets.length - 1];
+		double cellSize = motionModel != null ? getPredictedCellSize(table.size(), errorXs, errorYs) : 0;
+		double maxCost = isMotionModel ? gate * gate : maxStepSize * maxStepSize;
 		
-		for (int i = 0; i < offsets.size() - 1; i++) {
+		// the possible links of a window of slices are found in parallel,
+		// after which they are taken slice by slice
+		for (int window = 0; window < offsets.length - 1; window += WINDOW_SLICES) {
 			
-			int from = offsets.get(i);
-			int to = offsets.get(i + 1);
+			LinkCandidates[] candidates = new LinkCandidates[Math.min(WINDOW_SLICES, offsets.length - 1 - window)];
 			
-			// make a list of all possible links
-			ArrayList<double[]> links = new ArrayList<double[]>();
+			if (motionModel == null)
+				pool.invoke(new CandidateTask(slices, xs, ys, offsets, candidates, window, window, window + candidates.length));
 			
-			for (int row1 = from; row1 < to; row1++) {
+			for (int i = window; i < window + candidates.length; i++) {
 				
-				int s1 = (int)table.getValue("slice", row1);
-				double x1 = table.getValue("x", row1);
-				double y1 = table.getValue("y", row1);
+				LinkCandidates links = candidates[i - window];
+				candidates[i - window] = null;
 				
-				for (int row2 = to; row2 < table.getCounter(); row2++) {
-					
-					int s2 = (int)table.getValue("slice", row2);
-					double x2 = table.getValue("x", row2);
-					double y2 = table.getValue("y", row2);
-					
-					if (s2 - s1 > lookAhead)
-						break;
+				if (motionModel != null)
+					links = getPredictedLinks(i, slices, xs, ys, errorXs, errorYs, offsets, grids, cellSize, motionModel);
+				
+				if (isOptimalLinking)
+					links = getOptimalLinks(links, offsets[i], offsets[i + 1], hasPredecessor, maxCost);
+				
+				// filter out all links that are not possible
+				for (int k = 0; k < links.size(); k++) {
 					
-					double dx = x2 - x1;
-					double dy = y2 - y1;
-					double dsq = dx * dx + dy * dy;
+					int r1 = links.getRow1(k);
+					int r2 = links.getRow2(k);
+					int t1 = trajectories.get(r1);
 					
-					if (dsq < maxStepSize * maxStepSize) {
+					if (!linked[r1] && !linked[r2]) {
+						
+						if (t1 == -1) {
+							t1 = trajectoryCount++;
+							trajectories.set(r1, t1);
+						}
 						
-						links.add(new double[]{s2 - s1, dsq, row1, row2, dx, dy});
+						double dx = xs.get(r2) - xs.get(r1);
+						double dy = ys.get(r2) - ys.get(r1);
+						double dsq = dx * dx + dy * dy;
 						
+						trajectories.set(r2, t1);
+						dxs.set(r2, dx);
+						dys.set(r2, dy);
+						stepSizes.set(r2, Math.sqrt(dsq));
+						displacements.set(r2, dsq);
+						
+						if (motionModel != null)
+							motionModel.update(r1, r2, links.getGap(k), xs.get(r2), ys.get(r2), getVariance(errorXs, r2), getVariance(errorYs, r2));
+						
+						linked[r1] = true;
+						linked[r2] = true;
+						hasPredecessor[r2] = true;
 					}
 					
 				}
 				
-			}
-			
-			// sort all possible links on distance (or slice number)
-			Collections.sort(links, new Comparator<double[]>(){
-
-				@Override
-				public int compare(double[] o1, double[] o2) {
-					if (o1[0] != o2[0])
-						return Double.compare(o1[0], o2[0]);
-					
-					return Double.compare(o1[1], o2[1]);
-				}
-				
-			});
-			
-			// filter out all links that are not possible
-			Set<Integer> linked = new HashSet<Integer>();
-			
-			for (double[] link: links) {
-				
-				int r1 = (int)link[2];
-				int r2 = (int)link[3];
-				int t1 = (int)table.getValue("trajectory", r1);
-				
-				if (!linked.contains(r1) && !linked.contains(r2)) {
-
-					if (t1 == -1) {
-						t1 = trajectoryCount++;
-						table.setValue("trajectory", r1, t1);						
-					}
-					
-					table.setValue("trajectory", r2, t1);
-					table.setValue("dx", r2, link[4]);
-					table.setValue("dy", r2, link[5]);
-					table.setValue("step_size", r2, Math.sqrt(link[1]));
-					table.setValue("displacement_sq", r2, link[1]);
-					
-					linked.add(r1);
-					linked.add(r2);
+				// the links of the next slice are filtered independently
+				for (int k = 0; k < links.size(); k++) {
+					linked[links.getRow1(k)] = false;
+					linked[links.getRow2(k)] = false;
 				}
 				
 			}
@@ -173,64 +249,426 @@ public class ParticleTracker implements PlugIn {
 		// add trajectory length column
 		int[] trajectoryLength = new int[trajectoryCount];
 		
-		for (int row = 0; row < table.getCounter(); row++) {
-			int trajectory = (int)table.getValue("trajectory", row);
+		for (int row = 0; row < table.size(); row++) {
+			int trajectory = trajectories.get(row);
 			
 			if (trajectory >= 0)
 				trajectoryLength[trajectory]++;
 		}
 		
-		for (int row = 0; row < table.getCounter(); row++) {
-			int trajectory = (int)table.getValue("trajectory", row);
-			table.setValue("trajectory_length", row, trajectory >= 0 ? trajectoryLength[trajectory] : 1);
+		for (int row = 0; row < table.size(); row++) {
+			int trajectory = trajectories.get(row);
+			trajectoryLengths.set(row, trajectory >= 0 ? trajectoryLength[trajectory] : 1);
 		}
 		
 		// sort on slice column
-		ResultsTableSorter.sort(table, true, "trajectory", "slice");
+		table.sort("trajectory", "slice");
 		
 		// delete particles (rows) that don't belong to any trajectory
 		if (!keepNonTrajectories) {
-			for (int row = table.getCounter() - 1; row >= 0; row--) {
-				if (table.getValue("trajectory", row) == -1)
-					table.deleteRow(row);
+			boolean[] delete = new boolean[table.size()];
+			
+			for (int row = 0; row < table.size(); row++)
+				delete[row] = trajectories.get(row) == -1;
+			
+			table.deleteRows(delete);
+		}
+		
+	}
+
+	/**
+	 * Chooses the links from the rows from up to to (a single slice) such that
+	 * each row is linked at most once and the sum of the link costs is
+	 * minimal, by solving a linear assignment problem. The cost of a link is
+	 * its distance plus the max distance (the squared max step size, or the
+	 * squared gate with the motion model) for every slice that is skipped, so
+	 * that a link to the next slice is always cheaper than a link over a gap.
+	 * Leaving a row unlinked costs more than any link, which makes the
+	 * solution link as many rows as it can without forcing links that are
+	 * much longer than their alternatives.
+	 */
+	private LinkCandidates getOptimalLinks(LinkCandidates links, int from, int to, boolean[] hasPredecessor, double maxCost) {
+		
+		int rows = to - from;
+		int[] starts = new int[rows + 1];
+		int columns = 0;
+		
+		// rows can have a link of their own (to the row itself) for not being linked
+		for (int i = 0; i < rows; i++)
+			starts[i + 1] = 1;
+		
+		for (int k = 0; k < links.size(); k++) {
+			
+			int r2 = links.getRow2(k);
+			
+			if (!hasPredecessor[r2]) {
+				starts[links.getRow1(k) - from + 1]++;
+				columns = Math.max(columns, r2 - to + 1);
 			}
+			
 		}
 		
-		if (showTrajectories && table.getCounter() > 0) {
+		for (int i = 0; i < rows; i++)
+			starts[i + 1] += starts[i];
+		
+		int[] next = Arrays.copyOf(starts, rows);
+		int[] linkColumns = new int[starts[rows]];
+		double[] costs = new double[starts[rows]];
+		int[] candidates = new int[starts[rows]];
+		
+		for (int k = 0; k < links.size(); k++) {
 			
-			RoiManager roiManager = RoiManager.getInstance();
+			int r2 = links.getRow2(k);
 			
-			if (roiManager == null)
-				roiManager = new RoiManager();
+			if (!hasPredecessor[r2]) {
+				int e = next[links.getRow1(k) - from]++;
+				linkColumns[e] = r2 - to;
+				costs[e] = (links.getGap(k) - 1) * maxCost + links.getDistance(k);
+				candidates[e] = k;
+			}
 			
-			Polygon poly = new Polygon();
-			double x = table.getValue("x", 0);
-			double y = table.getValue("y", 0);
-			poly.addPoint((int)x, (int)y);
+		}
+		
+		for (int i = 0; i < rows; i++) {
+			linkColumns[next[i]] = columns + i;
+			costs[next[i]] = Math.max(lookAhead, 1) * maxCost;
+		}
+		
+		int[] assignment = LinearAssignment.solve(rows, columns + rows, starts, linkColumns, costs);
+		boolean[] isOptimal = new boolean[links.size()];
+		
+		for (int i = 0; i < rows; i++) {
 			
-			for (int row = 1; row < table.getCounter(); row++) {
-
-				x = table.getValue("x", row);
-				y = table.getValue("y", row);
-
-				if (table.getValue("trajectory", row) == table.getValue("trajectory", row - 1)) {
-					poly.addPoint((int)x, (int)y);
+			if (assignment[i] >= columns)
+				continue;
+			
+			for (int e = starts[i]; e < starts[i + 1]; e++) {
+				if (linkColumns[e] == assignment[i])
+					isOptimal[candidates[e]] = true;
+			}
+			
+		}
+		
+		// the optimal links do not conflict, so their order does not matter
+		return links.select(isOptimal);
+	}
+	
+	/**
+	 * Finds the possible links from slice i with the motion model. A peak is
+	 * only compared to the peaks within gate standard deviations of its
+	 * predicted position (and within the max step size), where the variance
+	 * is that of the prediction plus the localization error of the peak it
+	 * is compared to. The distance of a link is its squared distance to the
+	 * prediction in standard deviations.
+	 */
+	private LinkCandidates getPredictedLinks(int i, IntColumn slices, DoubleColumn xs, DoubleColumn ys, DoubleColumn errorXs, DoubleColumn errorYs, int[] offsets, Grid[] grids, double cellSize, MotionModel motionModel) {
+		
+		int from = offsets[i];
+		int to = offsets[i + 1];
+		
+		LinkCandidates links = new LinkCandidates();
+		double[] prediction = new double[4];
+		
+		// peaks that do not continue a trajectory start one
+		for (int row1 = from; row1 < to; row1++) {
+			if (!motionModel.isStarted(row1))
+				motionModel.start(row1, xs.get(row1), ys.get(row1), getVariance(errorXs, row1), getVariance(errorYs, row1));
+		}
+		
+		for (int j = i + 1; maxStepSize > 0 && j < grids.length && slices.get(offsets[j]) - slices.get(from) <= lookAhead; j++) {
+			
+			if (grids[j] == null)
+				grids[j] = new Grid(xs, ys, offsets[j], offsets[j + 1], cellSize);
+			
+			Grid grid = grids[j];
+			int gap = slices.get(offsets[j]) - slices.get(from);
+			
+			// the ellipses of the peaks of slice j are inside the ellipse of
+			// the largest localization error in the slice
+			double maxVarianceX = getMaxVariance(errorXs, offsets[j], offsets[j + 1]);
+			double maxVarianceY = getMaxVariance(errorYs, offsets[j], offsets[j + 1]);
+			
+			for (int row1 = from; row1 < to; row1++) {
+				
+				double x1 = xs.get(row1);
+				double y1 = ys.get(row1);
+				motionModel.predict(row1, gap, prediction);
+				double radiusX = gate * Math.sqrt(prediction[2] + maxVarianceX);
+				double radiusY = gate * Math.sqrt(prediction[3] + maxVarianceY);
+				
+				// cells that overlap both the ellipse and the max step size
+				long minX = grid.getCell(Math.max(prediction[0] - radiusX, x1 - maxStepSize));
+				long maxX = grid.getCell(Math.min(prediction[0] + radiusX, x1 + maxStepSize));
+				long minY = grid.getCell(Math.max(prediction[1] - radiusY, y1 - maxStepSize));
+				long maxY = grid.getCell(Math.min(prediction[1] + radiusY, y1 + maxStepSize));
+				
+				for (long cx = minX; cx <= maxX; cx++) {
+					for (long cy = minY; cy <= maxY; cy++) {
+						
+						int cell = grid.find(cx, cy);
+						
+						for (int k = cell < 0 ? 0 : grid.starts[cell]; cell >= 0 && k < grid.starts[cell + 1]; k++) {
+							
+							int row2 = grid.rows[k];
+							double dx = xs.get(row2) - x1;
+							double dy = ys.get(row2) - y1;
+							double ex = xs.get(row2) - prediction[0];
+							double ey = ys.get(row2) - prediction[1];
+							double varianceX = Math.max(prediction[2] + getVariance(errorXs, row2), Double.MIN_NORMAL);
+							double varianceY = Math.max(prediction[3] + getVariance(errorYs, row2), Double.MIN_NORMAL);
+							double distance = ex * ex / varianceX + ey * ey / varianceY;
+							
+							if (dx * dx + dy * dy < maxStepSize * maxStepSize && distance <= gate * gate)
+								links.add(gap, distance, row1, row2);
+							
+						}
+						
+					}
 				}
-				else {
-					roiManager.addRoi(new PolygonRoi(poly, PolygonRoi.POLYLINE));
+				
+			}
+			
+		}
+		
+		grids[i] = null;
+		links.sort();
+		
+		return links;
+	}
+	
+	private static double getVariance(DoubleColumn errors, int row) {
+		return errors == null ? 0 : errors.get(row) * errors.get(row);
+	}
+	
+	private static double getMaxVariance(DoubleColumn errors, int from, int to) {
+		
+		double max = 0;
+		
+		for (int row = from; row < to; row++) {
+			
+			double variance = getVariance(errors, row);
+			
+			// localization errors that are not known do not count
+			if (variance > max)
+				max = variance;
+		}
+		
+		return max;
+	}
+	
+	/**
+	 * Returns the cell size of the grids of the motion model, the typical
+	 * gate radius of a trajectory one slice later: a velocity that changed by
+	 * the velocity noise and the median localization error of both the
+	 * previous and the next peak. Cells are at least 1/16 of the max step
+	 * size, so that a new trajectory (of which the velocity is not known yet)
+	 * does not have to look at too many cells.
+	 */
+	private double getPredictedCellSize(int rows, DoubleColumn errorXs, DoubleColumn errorYs) {
+		
+		double variance = 0;
+		
+		if (rows > 0 && (errorXs != null || errorYs != null)) {
+			
+			double[] variances = new double[rows];
+			
+			for (int row = 0; row < rows; row++)
+				variances[row] = (getVariance(errorXs, row) + getVariance(errorYs, row)) / 2;
+			
+			Arrays.sort(variances);
+			variance = variances[rows / 2];
+		}
+		
+		double radius = gate * Math.sqrt(velocityNoise * velocityNoise + 2 * variance);
+		
+		return Math.min(Math.max(radius, maxStepSize / 16), maxStepSize);
+	}
+	
+	/**
+	 * Finds the possible links from the slices from up to to, sorted on slice
+	 * difference and distance, and stores them in candidates (of which the
+	 * first element belongs to the slice window). Blocks of slices are handled
+	 * in parallel.
+	 */
+	private class CandidateTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final IntColumn slices;
+		private final DoubleColumn xs;
+		private final DoubleColumn ys;
+		private final int[] offsets;
+		private final LinkCandidates[] candidates;
+		private final int window;
+		private final int from;
+		private final int to;
+		
+		public CandidateTask(IntColumn slices, DoubleColumn xs, DoubleColumn ys, int[] offsets, LinkCandidates[] candidates, int window, int from, int to) {
+			this.slices = slices;
+			this.xs = xs;
+			this.ys = ys;
+			this.offsets = offsets;
+			this.candidates = candidates;
+			this.window = window;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			if (to - from > BLOCK_SLICES) {
+				
+				int middle = (from + to) >>> 1;
+				
+				invokeAll(new CandidateTask(slices, xs, ys, offsets, candidates, window, from, middle),
+						new CandidateTask(slices, xs, ys, offsets, candidates, window, middle, to));
+				
+				return;
+			}
+			
+			// peaks further apart than the max step size are never linked, so
+			// peaks are only compared to the peaks in the neighbouring cells of a
+			// grid with cells of the max step size (slightly enlarged so that
+			// rounding can not push a possible link two cells away)
+			double cellSize = maxStepSize * (1 + 1e-6);
+			int groups = offsets.length - 1;
+			Grid[] grids = new Grid[Math.min(groups, to + Math.max(lookAhead, 0)) - from];
+			
+			for (int i = from; i < to; i++) {
+				
+				int from1 = offsets[i];
+				int to1 = offsets[i + 1];
+				
+				// make a list of all possible links
+				LinkCandidates links = new LinkCandidates();
+				
+				for (int j = i + 1; maxStepSize > 0 && j < groups && slices.get(offsets[j]) - slices.get(from1) <= lookAhead; j++) {
+					
+					if (grids[j - from] == null)
+						grids[j - from] = new Grid(xs, ys, offsets[j], offsets[j + 1], cellSize);
+					
+					Grid grid = grids[j - from];
+					int s2 = slices.get(offsets[j]);
+					
+					for (int row1 = from1; row1 < to1; row1++) {
+						
+						int s1 = slices.get(row1);
+						double x1 = xs.get(row1);
+						double y1 = ys.get(row1);
+						long cellX = grid.getCell(x1);
+						long cellY = grid.getCell(y1);
+						
+						for (long cx = cellX - 1; cx <= cellX + 1; cx++) {
+							for (long cy = cellY - 1; cy <= cellY + 1; cy++) {
+								
+								int cell = grid.find(cx, cy);
+								
+								for (int k = cell < 0 ? 0 : grid.starts[cell]; cell >= 0 && k < grid.starts[cell + 1]; k++) {
+									
+									int row2 = grid.rows[k];
+									double dx = xs.get(row2) - x1;
+									double dy = ys.get(row2) - y1;
+									double dsq = dx * dx + dy * dy;
+									
+									if (dsq < maxStepSize * maxStepSize)
+										links.add(s2 - s1, dsq, row1, row2);
+									
+								}
+								
+							}
+						}
+						
+					}
 					
-					poly = new Polygon();
-					poly.addPoint((int)x, (int)y);
 				}
+				
+				grids[i - from] = null;
+				
+				// sort all possible links on distance (or slice number), links that
+				// are equally good are taken in row order
+				links.sort();
+				candidates[i - window] = links;
 			}
 			
-			roiManager.addRoi(new PolygonRoi(poly, PolygonRoi.POLYLINE));
-			roiManager.run("Show All");
+		}
+		
+	}
+	
+	/**
+	 * The rows of a single slice grouped by the cell of a square grid they
+	 * are in. Only occupied cells are stored, the rows of cell i are
+	 * rows[starts[i]] up to rows[starts[i + 1]].
+	 */
+	static class Grid {
+		
+		private final double cellSize;
+		private final long[] keys;
+		private final int cellCount;
+		public final int[] starts;
+		public final int[] rows;
+		
+		public Grid(DoubleColumn xs, DoubleColumn ys, int from, int to, double cellSize) {
+			
+			this.cellSize = cellSize;
+			
+			long[] rowKeys = new long[to - from];
+			
+			for (int row = from; row < to; row++)
+				rowKeys[row - from] = getKey(getCell(xs.get(row)), getCell(ys.get(row)));
+			
+			// the occupied cells are the distinct keys, in sorted order
+			keys = rowKeys.clone();
+			Arrays.sort(keys);
+			
+			int count = 0;
+			
+			for (int i = 0; i < keys.length; i++) {
+				if (i == 0 || keys[i] != keys[count - 1])
+					keys[count++] = keys[i];
+			}
+			
+			cellCount = count;
+			
+			int[] rowCells = new int[to - from];
+			int[] counts = new int[cellCount + 1];
+			
+			for (int i = 0; i < rowKeys.length; i++) {
+				rowCells[i] = Arrays.binarySearch(keys, 0, cellCount, rowKeys[i]);
+				counts[rowCells[i]]++;
+			}
+			
+			starts = new int[cellCount + 1];
 			
+			for (int cell = 0; cell < cellCount; cell++)
+				starts[cell + 1] = starts[cell] + counts[cell];
+			
+			// rows of the same cell stay in row order
+			rows = new int[to - from];
+			int[] next = Arrays.copyOf(starts, cellCount);
+			
+			for (int row = from; row < to; row++)
+				rows[next[rowCells[row - from]]++] = row;
 		}
 		
-		table.show("Results");
+		public long getCell(double value) {
+			return (long)Math.floor(value / cellSize);
+		}
+		
+		/**
+		 * Returns the index of a cell, or -1 if there are no rows in it.
+		 */
+		public int find(long cellX, long cellY) {
+			
+			int cell = Arrays.binarySearch(keys, 0, cellCount, getKey(cellX, cellY));
+			
+			return cell < 0 ? -1 : cell;
+		}
+		
+		private static long getKey(long cellX, long cellY) {
+			return (cellX << 32) ^ (cellY & 0xffffffffL);
+		}
 		
 	}
-
+	
 }
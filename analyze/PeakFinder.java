@@ -5,6 +5,7 @@ import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import process.DiscoidalAveragingFilter;
 
@@ -13,6 +14,7 @@ import ij.ImagePlus;
 import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
+import ij.gui.OvalRoi;
 import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.plugin.filter.ExtendedPlugInFilter;
@@ -26,10 +28,10 @@ import ij.process.ImageProcessor;
  * an image. A threshold is then applied to the resulting image. The threshold
  * is determined by the mean pixel intensity and the standard deviation. The
  * user can specify how many times the standard deviation above the mean pixel
- * intensity is used a threshold value. The plugin then searches for the pixel
- * with the highest pixel intensity and keeps track of its position. The peak
- * is removed from the image and the search-process is then repeated until the
- * highest pixel intensity is below the threshold value.
+ * intensity is used a threshold value. The pixels above the threshold are
+ * then visited from the highest to the lowest pixel intensity. Each pixel that
+ * is not within the minimum distance of an already found peak becomes a new
+ * peak, so all peaks are found in a single pass.
  * 
  * @author C.M. Punter (c.m.punter@rug.nl)
  *
@@ -53,17 +55,33 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 	
 	private boolean isPreview = true;
 	
-	public PeakFinder() {
-		roiManager = RoiManager.getInstance();
+	// each thread reuses its buffers as long as the frame size does not
+	// change, the occupied pixels are cleared again after each frame
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
 		
-		if (roiManager == null) {
-			roiManager = new RoiManager();
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
 		}
+		
+	};
+	
+	private static class Buffers {
+		
+		private float[] pixels = new float[0];
+		private boolean[] occupied = new boolean[0];
+		private int[] offsets = new int[1024];
+		private long[] candidates = new long[1024];
+		private double[] statistics = new double[3];
+		
+	}
+	
+	public PeakFinder() {
+		
 	}
 	
 	public PeakFinder(boolean useDiscoidalAveraging, DiscoidalAveragingFilter filter,
 			double threshold, double thresholdValue, int minimumDistance, int selectionRadius) {
-		this();
 		
 		this.useDiscoidalAveraging = useDiscoidalAveraging;
 		this.threshold = threshold;
@@ -106,6 +124,15 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 			}
 			else {
 				
+				// the roi manager is only needed here, so finding peaks
+				// works without a display (in a headless batch run)
+				if (roiManager == null) {
+					roiManager = RoiManager.getInstance();
+					
+					if (roiManager == null)
+						roiManager = new RoiManager();
+				}
+				
 				int selectionWidth = selectionRadius * 2 + 1;
 				
 				for (Point p: peaks) {
@@ -121,104 +148,175 @@ public class PeakFinder implements ExtendedPlugInFilter, DialogListener {
 	}
 	
 	public ArrayList<Point> findPeaks(ImageProcessor ip) {
+		return findPeaks(ip, null);
+	}
+	
+	/**
+	 * Finds the peaks in an image and adds the time spent on filtering,
+	 * thresholding and finding to the metrics (if not null).
+	 */
+	public ArrayList<Point> findPeaks(ImageProcessor ip, FitMetrics metrics) {
+		
+		long time = System.nanoTime();
 		
 		ArrayList<Point> peaks = new ArrayList<Point>();
-		ImageProcessor duplicate = ip.duplicate();
+		Rectangle roi = ip.getRoi();
+		int width = ip.getWidth();
 		
-		if (useDiscoidalAveraging) {
-			filter.run(duplicate);
+		// the (filtered) pixels and their statistics (number of pixels, mean
+		// and sum of squared deviations) are determined in a single pass
+		Buffers buffers = this.buffers.get();
+		
+		if (buffers.pixels.length != ip.getPixelCount()) {
+			buffers.pixels = new float[ip.getPixelCount()];
+			buffers.occupied = new boolean[ip.getPixelCount()];
 		}
 		
-		Rectangle roi = ip.getRoi();
-		double t = thresholdValue; 
+		float[] pixels = buffers.pixels;
+		double[] statistics = buffers.statistics;
 		
-		if (t == 0) {
+		if (useDiscoidalAveraging) {
+			filter.filter(ip, pixels, statistics);
+		}
+		else {
 			
-			// determine mean and standard deviation
+			long n = 0;
 			double mean = 0;
-			double stdDev = 0;
+			double m2 = 0;
 			
 			for (int y = roi.y; y < roi.y + roi.height; y++) {
-				for (int x = roi.x; x < roi.x + roi.width; x++) {
+				for (int x = roi.x, offset = y * width + roi.x; x < roi.x + roi.width; x++, offset++) {
 					
-					mean += duplicate.getf(x, y);
-				}
-			}
-			
-			mean /= roi.width * roi.height;
-			
-			for (int y = roi.y; y < roi.y + roi.height; y++) {
-				for (int x = roi.x; x < roi.x + roi.width; x++) {
+					pixels[offset] = ip.getf(offset);
 					
-					double d = duplicate.getf(x, y) - mean;
-					
-					stdDev += d * d;
+					double delta = pixels[offset] - mean;
+					mean += delta / ++n;
+					m2 += delta * (pixels[offset] - mean);
 				}
 			}
 			
-			stdDev /= roi.width * roi.height;
-			stdDev = Math.sqrt(stdDev);
+			statistics[0] = n;
+			statistics[1] = mean;
+			statistics[2] = m2;
+		}
+		
+		if (metrics != null)
+			time = metrics.addTime(FitMetrics.Stage.FILTER, time);
+		
+		double t = thresholdValue; 
+		
+		if (t == 0) {
+			
+			double mean = statistics[1];
+			double stdDev = Math.sqrt(statistics[2] / statistics[0]);
 			
 			t = mean + threshold * stdDev;
 			
 		}
 		
 		// determine which pixels are above the threshold
-		int[] offsets = new int[roi.width * roi.height];
+		int[] offsets = buffers.offsets;
 		int numberOfPixels = 0;
-		int width = ip.getWidth();
 		
 		for (int y = roi.y; y < roi.y + roi.height; y++) {
-			for (int x = roi.x; x < roi.x + roi.width; x++) {
+			for (int x = roi.x, offset = y * width + roi.x; x < roi.x + roi.width; x++, offset++) {
 				
-				double pixel = duplicate.getf(x, y);
-				
-				if (pixel >= t)
-					offsets[numberOfPixels++] = x + y * width;
+				if (pixels[offset] >= t) {
+					
+					if (numberOfPixels == offsets.length) {
+						offsets = Arrays.copyOf(offsets, offsets.length * 2);
+						buffers.offsets = offsets;
+					}
+					
+					offsets[numberOfPixels++] = offset;
+				}
 				
 			}
 		}
 		
+		if (metrics != null)
+			time = metrics.addTime(FitMetrics.Stage.THRESHOLD, time);
+		
 		if (numberOfPixels > 0) {
 			
 			int distanceWidth = minimumDistance * 2 + 1;
-			double minValue = duplicate.minValue();
+			double minValue = ip.minValue();
+			int height = ip.getHeight();
 			
-			while (true) {
+			// sort the candidates on pixel value (highest first), pixels with
+			// the same value keep their scan order
+			if (buffers.candidates.length < numberOfPixels)
+				buffers.candidates = new long[offsets.length];
 			
-				// find maximum
-				double maxValue = minValue;
-				int maxOffset = offsets[0];
+			long[] candidates = buffers.candidates;
+			
+			for (int i = 0; i < numberOfPixels; i++) {
+				int bits = Float.floatToIntBits(pixels[offsets[i]]);
+				bits ^= (bits >> 31) & 0x7fffffff;
 				
-				for (int i = 0; i < numberOfPixels; i++) {
-					
-					double pixel = duplicate.getf(offsets[i]);
-					
-					if (pixel > maxValue) {
-						maxValue = pixel;
-						maxOffset = offsets[i];
-					}
-					
-				}
+				candidates[i] = ((long)bits << 32) | (numberOfPixels - 1 - i);
+			}
+			
+			Arrays.sort(candidates, 0, numberOfPixels);
+			
+			// the same oval that was previously filled to remove a peak
+			ImageProcessor mask = new OvalRoi(0, 0, distanceWidth, distanceWidth).getMask();
+			boolean[] occupied = buffers.occupied;
+			
+			for (int i = numberOfPixels - 1; i >= 0; i--) {
+				
+				int offset = offsets[numberOfPixels - 1 - (int)candidates[i]];
+				double pixel = pixels[offset];
 				
-				if (maxValue <= t)
+				if (pixel <= t || pixel <= minValue)
 					break;
 				
-				// remove peak so we don't count it twice
-				int x = maxOffset % width;
-				int y = maxOffset / width;
+				if (occupied[offset])
+					continue;
+				
+				int x = offset % width;
+				int y = offset / width;
 				
-				duplicate.setValue(minValue);
-				duplicate.fillOval(x - minimumDistance, y - minimumDistance, distanceWidth, distanceWidth);
+				// mark the neighbourhood of the peak so we don't count it twice
+				setNeighbourhood(occupied, mask, x, y, width, height, true);
 				
 				peaks.add(new Point(x, y));
 			}
 			
+			// clear only the marked pixels, so the buffer can be reused
+			for (Point p: peaks)
+				setNeighbourhood(occupied, mask, p.x, p.y, width, height, false);
+			
 		}
 		
+		if (metrics != null)
+			metrics.addTime(FitMetrics.Stage.FIND, time);
+		
 		return peaks;
 	}
 
+	private void setNeighbourhood(boolean[] occupied, ImageProcessor mask, int x, int y, int width, int height, boolean value) {
+		
+		int distanceWidth = minimumDistance * 2 + 1;
+		
+		for (int my = 0; my < distanceWidth; my++) {
+			
+			int y1 = y - minimumDistance + my;
+			
+			if (y1 < 0 || y1 >= height)
+				continue;
+			
+			for (int mx = 0; mx < distanceWidth; mx++) {
+				
+				int x1 = x - minimumDistance + mx;
+				
+				if (x1 >= 0 && x1 < width && (mask == null || mask.get(mx, my) != 0))
+					occupied[x1 + y1 * width] = value;
+			}
+		}
+		
+	}
+	
 	@Override
 	public int setup(String arg, ImagePlus imp) {
 		
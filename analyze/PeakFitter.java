@@ -5,10 +5,18 @@ import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 import process.DiscoidalAveragingFilter;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
@@ -20,6 +28,7 @@ import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.PlugInFilterRunner;
 import ij.plugin.frame.RoiManager;
 import ij.process.ImageProcessor;
+import util.Parameters;
 
 /**
  * The peak fitter plugin searches for peaks in an image (by using the peak
@@ -47,57 +56,64 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 	
 	private int flags = DOES_8G | DOES_16 | DOES_32 | NO_CHANGES | FINAL_PROCESSING | PARALLELIZE_STACKS;
 	
-	private boolean useDiscoidalAveraging = Prefs.getBoolean("PeakFitter.useDiscoidalAveraging", true);
-	private int innerRadius = Prefs.getInt("PeakFitter.innerRadius", 1);
-	private int outerRadius = Prefs.getInt("PeakFitter.outerRadius", 3);
-	private double threshold = Prefs.getDouble("PeakFitter.threshold", 6.0);
-	private double thresholdValue = Prefs.getDouble("PeakFitter.thresholdValue", 0);
-	private int minimumDistance = Prefs.getInt("PeakFitter.minimumDistance", 8);
-	private int fitRadius = Prefs.getInt("PeakFitter.fitRadius", 4);
-	private static double sigma = Prefs.getInt("PeakFitter.sigma", 1);
+	private boolean useDiscoidalAveraging = Parameters.getBoolean("PeakFitter.useDiscoidalAveraging", true);
+	private int innerRadius = Parameters.getInt("PeakFitter.innerRadius", 1);
+	private int outerRadius = Parameters.getInt("PeakFitter.outerRadius", 3);
+	private double threshold = Parameters.getDouble("PeakFitter.threshold", 6.0);
+	private double thresholdValue = Parameters.getDouble("PeakFitter.thresholdValue", 0);
+	private int minimumDistance = Parameters.getInt("PeakFitter.minimumDistance", 8);
+	private int fitRadius = Parameters.getInt("PeakFitter.fitRadius", 4);
+	private double sigma = Parameters.getInt("PeakFitter.sigma", 1);
 	
 	private boolean isRoiFit = false;
+	private int[] roiLabels;
+	
+	// stream the frames of a stack through a bounded queue instead of letting
+	// the plugin filter runner process them, meant for (large) virtual stacks
+	private boolean isStreaming = Parameters.getBoolean("PeakFitter.streaming", false);
+	private int prefetchFrames = Parameters.getInt("PeakFitter.prefetchFrames", 8);
 	
-	private int totalFittedPeaks = 0;
-	private int foundPeaks = 0;
+	private AtomicInteger foundPeaks = new AtomicInteger();
+	private AtomicInteger fittedFrames = new AtomicInteger();
+	private FitMetrics metrics = new FitMetrics();
 	
 	private double[] maxError = new double[] {
-			Prefs.getDouble("PeakFitter.maxErrorBaseline", 5000),
-			Prefs.getDouble("PeakFitter.maxErrorHeight", 5000),
-			Prefs.getDouble("PeakFitter.maxErrorX", 1),
-			Prefs.getDouble("PeakFitter.maxErrorY", 1),
-			Prefs.getDouble("PeakFitter.maxErrorSigmaX", 1),
-			Prefs.getDouble("PeakFitter.maxErrorSigmaY", 1),
+			Parameters.getDouble("PeakFitter.maxErrorBaseline", 5000),
+			Parameters.getDouble("PeakFitter.maxErrorHeight", 5000),
+			Parameters.getDouble("PeakFitter.maxErrorX", 1),
+			Parameters.getDouble("PeakFitter.maxErrorY", 1),
+			Parameters.getDouble("PeakFitter.maxErrorSigmaX", 1),
+			Parameters.getDouble("PeakFitter.maxErrorSigmaY", 1),
 	};
 	
 	private PeakFinder peakFinder;
 	
-	private static LevenbergMarquardt lm = new LevenbergMarquardt() {
+	// peaks of a single frame are fitted in parallel by a pool shared by all instances
+	private static final ForkJoinPool pool = new ForkJoinPool(Math.max(Prefs.getThreads(), 1));
+	private static final int peaksPerTask = 32;
+	
+	// a frame with this many times the average number of peaks is dense
+	private static final int denseFrameFactor = 4;
+	
+	// each thread that runs this filter fits with its own context
+	private ThreadLocal<PeakFitterContext> contexts = PeakFitterContext.perThread(sigma);
+	
+	// the fitted peaks of each thread, merged into the table after the last slice
+	private final List<LocalizationBuffer> allBuffers = new ArrayList<LocalizationBuffer>();
+	private final ThreadLocal<LocalizationBuffer> buffers = new ThreadLocal<LocalizationBuffer>() {
 		
 		@Override
-		public double getValue(double[] x, double[] p) {
-			
-			double dx = x[0] - p[2];
-			double dy = x[1] - p[3];
-			
-			return p[0] + p[1] * Math.exp(-((dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5])));
-		}
-
-		@Override
-		public void getGradient(double[] x, double[] p, double[] dyda) {
+		protected LocalizationBuffer initialValue() {
 			
-			double dx = x[0] - p[2];
-			double dy = x[1] - p[3];
+			LocalizationBuffer buffer = new LocalizationBuffer();
 			
-			dyda[0] = 1;
-			dyda[1] = Math.exp(-((dx * dx) / (2 * p[4] * p[4]) + (dy * dy) / (2 * p[5] * p[5])));
-			dyda[2] = (p[1] * dyda[1] * dx) / (p[4] * p[4]);
-			dyda[3] = (p[1] * dyda[1] * dy) / (p[5] * p[5]);
-			dyda[4] = (p[1] * dyda[1] * dx * dx) / (p[4] * p[4] * p[4]);
-			dyda[5] = (p[1] * dyda[1] * dy * dy) / (p[5] * p[5] * p[5]);
+			synchronized (allBuffers) {
+				allBuffers.add(buffer);
+			}
 			
+			return buffer;
 		}
-
+		
 	};
 	
 	private ResultsTable table;
@@ -108,99 +124,418 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 	@Override
 	public void run(ImageProcessor ip) {
 		
-		Rectangle roi = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
-		
-		if (imp.getRoi() != null)
-			roi = imp.getRoi().getBounds();
+		if (isPreview) {
+			
+			LocalizationBuffer fits = new LocalizationBuffer();
+			fitFrame(ip, 0, fits, 1);
+			
+			Polygon poly = new Polygon();
+			
+			for (int i = 0; i < fits.size(); i++)
+				poly.addPoint((int)Math.round(fits.getParameter(i, 2)), (int)Math.round(fits.getParameter(i, 3)));
+			
+			PointRoi peakRoi = new PointRoi(poly);
+			imp.setRoi(peakRoi);
+			
+		}
+		else {
+			
+			// the slices of a stack are fitted in parallel by at most one
+			// thread per slice
+			int frameThreads = (flags & DOES_STACKS) != 0 ? Math.min(imp.getStackSize(), Prefs.getThreads()) : 1;
+			
+			fitFrame(ip, ip.getSliceNumber(), buffers.get(), frameThreads);
+			
+		}
 		
-		ArrayList<Point> peaks = peakFinder.findPeaks(ip);
+	}
+	
+	/**
+	 * Finds and fits the peaks of a frame and adds the valid fits to the
+	 * buffer. frameThreads is the number of frames that are fitted at the same
+	 * time, see {@link #isPeakParallel} for when the peaks of the frame are
+	 * divided over the threads of the pool.
+	 */
+	private void fitFrame(ImageProcessor ip, int slice, LocalizationBuffer buffer, int frameThreads) {
+		
+		// the preview is not counted
+		FitMetrics metrics = isPreview ? null : this.metrics;
+		long time = metrics != null ? metrics.startFrame() : 0;
+		
+		ArrayList<Point> peaks = peakFinder.findPeaks(ip, metrics);
 		double[][] fitParameters = new double[peaks.size()][6];
 		double[][] fitErrors = new double[peaks.size()][6];
 		double[] rSquared = new double[peaks.size()];
+		int[] rois = new int[peaks.size()];
+		boolean[] valid = new boolean[peaks.size()];
+		
+		// the roi manager can change while previewing
+		int[] labels = isPreview ? getRoiLabels(ip.getWidth(), ip.getHeight()) : roiLabels;
+		
+		FitTask task = new FitTask(ip, peaks, labels, fitParameters, fitErrors, rSquared, rois, valid, metrics);
+		
+		if (isPeakParallel(peaks.size(), frameThreads))
+			pool.invoke(task);
+		else
+			task.fit(0, peaks.size());
+		
+		if (metrics != null)
+			time = metrics.addTime(FitMetrics.Stage.FIT, time);
+		
+		// keep the valid fits only
 		int fittedPeaks = 0;
 		
-		int fitWidth = fitRadius * 2 + 1;
-
-		for (Point peak: peaks) {
+		for (int i = 0; i < peaks.size(); i++) {
 			
-			if (isRoiFit) {
-				
-				RoiManager roiManager = RoiManager.getInstance();
-				
-				if (roiManager != null) {
-					
-					boolean isInRoi = false;
-					
-					for (Roi r: roiManager.getRoisAsArray()) {
-						if (r.contains(peak.x, peak.y)) {
-							isInRoi = true;
-							break;
-						}
-					}
-					
-					if (!isInRoi)
-						continue;
-				}
-				
+			if (valid[i]) {
+				buffer.add(fitParameters[i], fitErrors[i], slice, rSquared[i], rois[i]);
+				fittedPeaks++;
 			}
 			
-			ip.setRoi(new Rectangle(peak.x - fitRadius, peak.y - fitRadius, fitWidth, fitWidth));
-			
-			double[] parameters = fitParameters[fittedPeaks];
-			double[] errors = fitErrors[fittedPeaks];
+		}
+		
+		if (!isPreview) {
+			foundPeaks.addAndGet(peaks.size());
+			fittedFrames.incrementAndGet();
+			metrics.addTime(FitMetrics.Stage.SINK, time);
+			metrics.endFrame(peaks.size(), fittedPeaks);
+		}
+		
+	}
+	
+	/**
+	 * Decides for a frame with the given number of peaks whether its peaks
+	 * are fitted in parallel, which pays off when fitting whole frames in
+	 * parallel leaves threads idle: when fewer frames are fitted at the same
+	 * time than there are threads (a single image or a stack with fewer
+	 * slices than threads), or when the frame has many more peaks than the
+	 * average frame so far and would otherwise hold up the other threads at
+	 * the end. Frames with fewer than two tasks of peaks are never divided.
+	 */
+	private boolean isPeakParallel(int peaks, int frameThreads) {
+		
+		if (peaks < 2 * peaksPerTask)
+			return false;
+		
+		if (frameThreads < Prefs.getThreads())
+			return true;
+		
+		int frames = fittedFrames.get();
+		
+		return frames > 0 && peaks > denseFrameFactor * (double)foundPeaks.get() / frames;
+	}
+	
+	/**
+	 * Streams the frames of the stack and shows the fitted peaks in the
+	 * results table.
+	 */
+	private void stream(ImageStack stack) {
+		
+		int rows = table.getCounter();
+		
+		try {
+			fitStack(stack, Prefs.getThreads(), table);
+		}
+		catch (InterruptedException e) {
+			IJ.log("Peak Fitter: interrupted after " + (table.getCounter() - rows) + " fitted peaks");
+		}
+		catch (ExecutionException e) {
+			IJ.log(e.getCause().toString());
+		}
+		
+		registerMetrics();
+		
+		IJ.showStatus("found peaks : "  + foundPeaks + " fitted peaks : " + (table.getCounter() - rows));
+		
+		table.show("Results");
+	}
+	
+	/**
+	 * Fits all frames of the stack through a frame pipeline and appends the
+	 * fitted peaks of each frame to the table as soon as the frame (and all
+	 * frames before it) are done. No dialogs are involved, without a dialog
+	 * the settings are taken from the preferences so that stacks can also be
+	 * fitted headless.
+	 */
+	public void fitStack(ImageStack stack, int threads, final ResultsTable table) throws InterruptedException, ExecutionException {
+		
+		fitStack(stack, threads, new FramePipeline.LocalizationSink() {
 			
-			for (int i = 0; i < parameters.length; i++)
-				parameters[i] = Double.NaN;
+			@Override
+			public void add(int slice, LocalizationBuffer fits) {
+				fits.addToResultsTable(table);
+			}
 			
-			parameters[2] = peak.x;
-			parameters[3] = peak.y;
+		});
+		
+	}
+	
+	/**
+	 * Fits all frames of the stack and hands the fitted peaks of each frame
+	 * to a sink (for example a {@link StreamingTracker}) in slice order.
+	 */
+	public void fitStack(final ImageStack stack, int threads, final FramePipeline.LocalizationSink sink) throws InterruptedException, ExecutionException {
+		
+		isPreview = false;
+		
+		if (peakFinder == null)
+			createPeakFinder(stack.getWidth());
+		
+		FramePipeline pipeline = new FramePipeline(stack, prefetchFrames, threads);
+		final int frameThreads = Math.min(threads, stack.getSize());
+		
+		pipeline.run(new FramePipeline.FrameFitter() {
 			
-			rSquared[fittedPeaks] = fitPeak(ip, parameters, errors);
+			@Override
+			public void fit(ImageProcessor ip, int slice, LocalizationBuffer fits) {
+				fitFrame(ip, slice, fits, frameThreads);
+			}
 			
-			boolean valid = true;
+		}, new FramePipeline.LocalizationSink() {
 			
-			for (int i = 0; valid && i < parameters.length; i++) {
+			@Override
+			public void add(int slice, LocalizationBuffer fits) {
+				
+				long time = System.nanoTime();
 				
-				if (Double.isNaN(parameters[i]) || Double.isNaN(errors[i]) || Math.abs(errors[i]) > maxError[i])
-					valid = false;
+				sink.add(slice, fits);
+				IJ.showProgress(slice, stack.getSize());
 				
+				metrics.addTime(FitMetrics.Stage.SINK, time);
 			}
 			
-			if (valid)
-				fittedPeaks++;
-			
+		});
+		
+	}
+	
+	public int getFoundPeaks() {
+		return foundPeaks.get();
+	}
+	
+	public FitMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Makes the metrics of the last run available through JMX.
+	 */
+	private void registerMetrics() {
+		
+		try {
+			metrics.register("PeakFitter");
+		}
+		catch (JMException e) {
+			IJ.log(e.getMessage());
 		}
 		
-		if (roi != null)
-			ip.setRoi(roi);
+	}
+	
+	/**
+	 * Returns the roi labels of the rois in the roi manager if peaks should
+	 * only be fitted inside rois, or null otherwise.
+	 */
+	private int[] getRoiLabels(int width, int height) {
 		
-		if (isPreview) {
-			
-			Polygon poly = new Polygon();
+		RoiManager roiManager = RoiManager.getInstance();
+		
+		if (!isRoiFit || roiManager == null)
+			return null;
+		
+		return getRoiLabels(roiManager.getRoisAsArray(), width, height);
+	}
+	
+	/**
+	 * Rasterizes rois into a mask in which each pixel holds the number
+	 * (starting at 1) of the first roi that contains it, or 0 if no roi
+	 * contains it.
+	 */
+	public static int[] getRoiLabels(Roi[] rois, int width, int height) {
+		
+		int[] labels = new int[width * height];
+		
+		for (int i = 0; i < rois.length; i++) {
 			
-			for (int i = 0; i < fittedPeaks; i++)
-				poly.addPoint((int)Math.round(fitParameters[i][2]), (int)Math.round(fitParameters[i][3]));
+			Rectangle bounds = rois[i].getBounds();
+			ImageProcessor mask = rois[i].getMask();
+			byte[] maskPixels = mask == null ? null : (byte[])mask.getPixels();
 			
-			PointRoi peakRoi = new PointRoi(poly);
-			imp.setRoi(peakRoi);
+			int x0 = Math.max(bounds.x, 0);
+			int y0 = Math.max(bounds.y, 0);
+			int x1 = Math.min(bounds.x + bounds.width, width);
+			int y1 = Math.min(bounds.y + bounds.height, height);
 			
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					
+					if (labels[y * width + x] != 0)
+						continue;
+					
+					// rectangular rois have no mask
+					if (maskPixels == null || maskPixels[(y - bounds.y) * bounds.width + x - bounds.x] != 0)
+						labels[y * width + x] = i + 1;
+				}
+			}
 		}
-		else {
+		
+		return labels;
+	}
+	
+	/**
+	 * Fits the peaks of a frame. When run in a fork-join pool the peaks are
+	 * divided into tasks of at most peaksPerTask peaks.
+	 */
+	private class FitTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final ImageProcessor ip;
+		private final List<Point> peaks;
+		private final int[] labels;
+		private final double[][] parameters;
+		private final double[][] errors;
+		private final double[] rSquared;
+		private final int[] rois;
+		private final boolean[] valid;
+		private final FitMetrics metrics;
+		private final int from;
+		private final int to;
+		
+		public FitTask(ImageProcessor ip, List<Point> peaks, int[] labels, double[][] parameters, double[][] errors, double[] rSquared, int[] rois, boolean[] valid, FitMetrics metrics) {
+			this.ip = ip;
+			this.peaks = peaks;
+			this.labels = labels;
+			this.parameters = parameters;
+			this.errors = errors;
+			this.rSquared = rSquared;
+			this.rois = rois;
+			this.valid = valid;
+			this.metrics = metrics;
+			this.from = 0;
+			this.to = peaks.size();
+		}
+		
+		private FitTask(FitTask task, int from, int to) {
+			this.ip = task.ip;
+			this.peaks = task.peaks;
+			this.labels = task.labels;
+			this.parameters = task.parameters;
+			this.errors = task.errors;
+			this.rSquared = task.rSquared;
+			this.rois = task.rois;
+			this.valid = task.valid;
+			this.metrics = task.metrics;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			
+			if (to - from <= peaksPerTask) {
+				fit(from, to);
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new FitTask(this, from, middle), new FitTask(this, middle, to));
+			}
 			
-			int slice = ip.getSliceNumber();
+		}
+		
+		/**
+		 * Fits peaks from (inclusive) to to (exclusive) on the current thread.
+		 */
+		public void fit(int from, int to) {
 			
+			Rectangle bounds = new Rectangle(0, 0, ip.getWidth(), ip.getHeight());
+			PeakFitterContext context = contexts.get();
+			Object pixels = ip.getPixels();
+			double saturation = ip.maxValue();
+			int fitWidth = fitRadius * 2 + 1;
 			
-			synchronized (this) {
-				for (int i = 0; i < fittedPeaks; i++) {
-					addToResultsTable(table, fitParameters[i], fitErrors[i], slice, rSquared[i]);
+			for (int i = from; i < to; i++) {
+				
+				Point peak = peaks.get(i);
+				
+				if (labels != null) {
+					
+					rois[i] = labels[peak.y * ip.getWidth() + peak.x];
+					
+					if (rois[i] == 0) {	// not inside any roi
+						
+						if (metrics != null)
+							metrics.reject(FitMetrics.Rejection.OUTSIDE_ROI);
+						
+						continue;
+					}
+				}
+				
+				Rectangle window = new Rectangle(peak.x - fitRadius, peak.y - fitRadius, fitWidth, fitWidth).intersection(bounds);
+				
+				double[] p = parameters[i];
+				double[] e = errors[i];
+				
+				for (int j = 0; j < p.length; j++)
+					p[j] = Double.NaN;
+				
+				p[2] = peak.x;
+				p[3] = peak.y;
+				
+				rSquared[i] = context.fitPeak(pixels, ip.getWidth(), window, saturation, p, e);
+				
+				if (metrics != null && context.getIterations() > 0)
+					metrics.addFit(context.getIterations());
+				
+				valid[i] = true;
+				
+				for (int j = 0; valid[i] && j < p.length; j++) {
+					
+					if (Double.isNaN(p[j]) || Double.isNaN(e[j]) || Math.abs(e[j]) > maxError[j]) {
+						
+						valid[i] = false;
+						
+						if (metrics != null)
+							metrics.reject(getRejection(p[j], e[j], j));
+					}
+					
 				}
 				
-				foundPeaks += peaks.size();
-				totalFittedPeaks += fittedPeaks;
 			}
 			
 		}
 		
+		private FitMetrics.Rejection getRejection(double p, double e, int parameter) {
+			
+			if (Double.isNaN(p) || Double.isNaN(e))
+				return FitMetrics.Rejection.NAN;
+			
+			return FitMetrics.Rejection.values()[FitMetrics.Rejection.MAX_ERROR_BASELINE.ordinal() + parameter];
+		}
+		
+	}
+	
+	// contexts of the deprecated static fit methods, with the sigma preference
+	private static final ThreadLocal<PeakFitterContext> staticContexts = PeakFitterContext.perThread(Parameters.getInt("PeakFitter.sigma", 1));
+	
+	/**
+	 * Fits a peak to the pixels inside the roi of the image processor.
+	 * 
+	 * @deprecated use {@link PeakFitterContext#fitPeak(ImageProcessor, double[], double[])}
+	 * with a context of your own, which also sets the initial sigma
+	 */
+	@Deprecated
+	public static double fitPeak(ImageProcessor ip, double[] p, double[] e) {
+		return staticContexts.get().fitPeak(ip, p, e);
+	}
+	
+	/**
+	 * Fits a peak to the pixels of a window of an image.
+	 * 
+	 * @deprecated use {@link PeakFitterContext#fitPeak(Object, int, Rectangle, double, double[], double[])}
+	 * with a context of your own, which also sets the initial sigma
+	 */
+	@Deprecated
+	public static double fitPeak(Object pixels, int imageWidth, Rectangle window, double saturation, double[] p, double[] e) {
+		return staticContexts.get().fitPeak(pixels, imageWidth, window, saturation, p, e);
 	}
 	
 	public static void addToResultsTable(ResultsTable table, double[] parameters, double[] errors, int slice, double rSquared) {
@@ -245,53 +580,25 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		
 	}
 	
-	public static double fitPeak(ImageProcessor ip, double[] p, double[] e) {
-		Rectangle roi = ip.getRoi();
-		
-		double[][] xs = new double[roi.width * roi.height][2];
-		double[] ys = new double[xs.length];
-			
-		int n = 0;
-		int max = 0;
-		int min = 0;
-		
-		for (int y = roi.y; y < roi.y + roi.height; y++) {
-			for (int x = roi.x; x < roi.x + roi.width; x++) {
-				
-				xs[n][0] = x;
-				xs[n][1] = y;
-				ys[n] = ip.getf(x, y);
-				
-				if (ys[n] < ip.maxValue()) {	// ignore saturated values
-					if (ys[n] > ys[max])
-						max = n;
-					if (ys[n] < ys[min])
-						min = n;
-					n++;
-				}
-				
-			}
-		}
-		
-		double[] guess = {ys[min], ys[max] - ys[min], xs[max][0], xs[max][1], sigma, sigma};
-		
-		if (!Double.isNaN(p[2]) && !Double.isNaN(p[3])) {
-			p[0] = ys[min];
-			p[1] = ip.getf((int)p[2], (int)p[3]) - p[0];
-		}
-		
-		for (int i = 0; i < p.length; i++)
-			if (Double.isNaN(p[i])) p[i] = guess[i];
-		
-		return lm.solve(xs, ys, null, n, p, null, e, 0.001);
-	}
-
 	@Override
 	public int setup(String arg, ImagePlus imp) {
 		
 		if (arg.equals("final")) {
 			
-			IJ.showStatus("found peaks : "  + foundPeaks + " fitted peaks : " + totalFittedPeaks);
+			LocalizationBuffer fits;
+			long time = System.nanoTime();
+			
+			synchronized (allBuffers) {
+				fits = LocalizationBuffer.merge(allBuffers);
+				allBuffers.clear();
+			}
+			
+			fits.addToResultsTable(table);
+			
+			metrics.addTime(FitMetrics.Stage.SINK, time);
+			registerMetrics();
+			
+			IJ.showStatus("found peaks : "  + foundPeaks + " fitted peaks : " + fits.size());
 			
 			table.show("Results");
 			return DONE;
@@ -324,15 +631,25 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 			maxError[i] = dialog.getNextNumber();
 
 		isRoiFit = dialog.getNextBoolean();
+		isStreaming = dialog.getNextBoolean();
+		prefetchFrames = (int)dialog.getNextNumber();
+		
+		contexts = PeakFitterContext.perThread(sigma);
+		
+		createPeakFinder(imp.getWidth());
+		
+		return true;
+	}
+	
+	private void createPeakFinder(int width) {
 		
 		DiscoidalAveragingFilter filter = new DiscoidalAveragingFilter();
-		filter.setCircleOffsets(imp.getWidth(), innerRadius, outerRadius);
+		filter.setCircleOffsets(width, innerRadius, outerRadius);
 		
 		peakFinder = new PeakFinder(useDiscoidalAveraging,
-				new DiscoidalAveragingFilter(imp.getWidth(), innerRadius, outerRadius),
+				new DiscoidalAveragingFilter(width, innerRadius, outerRadius),
 				threshold, thresholdValue, minimumDistance, 0);
 		
-		return true;
 	}
 
 	@Override
@@ -365,6 +682,9 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 		
 		dialog.addCheckbox("Fit_peaks_inside_rois", isRoiFit);
 		
+		dialog.addCheckbox("Stream_frames (for virtual stacks)", isStreaming);
+		dialog.addNumericField("Prefetch_frames", prefetchFrames, 0);
+		
 		dialog.addDialogListener(this);
 		dialog.addPreviewCheckbox(pfr);
 		dialog.showDialog();
@@ -373,8 +693,15 @@ public class PeakFitter implements ExtendedPlugInFilter, DialogListener {
 			return DONE;
 		
 		isPreview = false;
+		roiLabels = getRoiLabels(imp.getWidth(), imp.getHeight());
 		
-		return IJ.setupDialog(imp, flags);
+		if (isStreaming && imp.getStackSize() > 1) {
+			stream(imp.getStack());
+			return DONE;
+		}
+		
+		flags = IJ.setupDialog(imp, flags);
+		return flags;
 	}
 	
 }
@@ -21,36 +21,11 @@ public static final double SIGMA_TO_FWHM = 2.0 * Math.sqrt(2.0 * Math.log(2));
 	
 	private int flags = DOES_8G | DOES_16 | DOES_32 | NO_CHANGES | FINAL_PROCESSING | PARALLELIZE_STACKS;
 	
-	private static double sigma = Prefs.getInt("PeakFitter.sigma", 1);
-	private static double minRSquared = Prefs.getDouble("PeakFitter.minRSquared", 0.80);
+	private double sigma = Prefs.getInt("PeakFitter.sigma", 1);
+	private double minRSquared = Prefs.getDouble("PeakFitter.minRSquared", 0.80);
 	
-	private static LevenbergMarquardt lm = new LevenbergMarquardt() {
-		
-		@Override
-		public double getValue(double[] x, double[] p) {
-			
-			double dx = x[0] - p[2];
-			double dy = x[1] - p[3];
-			
-			return p[0] + p[1] * Math.exp(-((dx * dx + dy * dy) / (2 * p[4] * p[4])));
-		}
-
-		// https://www.symbolab.com/solver/partial-derivative-calculator/%5Cfrac%7B%5Cpartial%7D%7B%5Cpartial%20y%7D%5Cleft(a%2Bb%5Ccdot%20e%5E%7B-%5Cleft(%5Cleft(x%5E2%2By%5E2%5Cright)%5Cdiv%5Cleft(2%5Ccdot%20s%5E2%5Cright)%5Cright)%7D%5Cright)
-		@Override
-		public void getGradient(double[] x, double[] p, double[] dyda) {
-			
-			double dx = x[0] - p[2];
-			double dy = x[1] - p[3];
-			
-			dyda[0] = 1;
-			dyda[1] = Math.exp(-((dx * dx + dy * dy) / (2 * p[4] * p[4])));
-			dyda[2] = (dyda[1] * p[1] * dx) / (p[4] * p[4]);
-			dyda[3] = (dyda[1] * p[1] * dy) / (p[4] * p[4]);
-			dyda[4] = (dyda[1] * p[1] * (dx * dx + dy * dy)) / (p[4] * p[4] * p[4]);
-			
-		}
-
-	};
+	// each thread that runs this filter fits with its own context
+	private ThreadLocal<PeakFitterContext> contexts = PeakFitterContext.perThread(sigma);
 	
 	private ResultsTable table;
 	private ImagePlus imp;
@@ -58,26 +33,27 @@ public static final double SIGMA_TO_FWHM = 2.0 * Math.sqrt(2.0 * Math.log(2));
 	@Override
 	public void run(ImageProcessor ip) {
 		
+		PeakFitterContext context = contexts.get();
 		Rectangle roi = imp.getRoi().getBounds();
 		
-		double[][] xs = new double[roi.width * roi.height][2];
-		double[] ys = new double[xs.length];
+		int size = roi.width * roi.height;
+		double[] ys = new double[size];
+		boolean[] mask = new boolean[size];
+		double[] sortedPixels = new double[size];
 		int n = 0;
 		
-		for (int y = roi.y; y < roi.y + roi.height; y++) {
-			for (int x = roi.x; x < roi.x + roi.width; x++) {
-				
-				xs[n][0] = x;
-				xs[n][1] = y;
-				ys[n] = ip.getf(x, y);
-				
-				if (ys[n] < ip.maxValue())	// ignore saturated values
-					n++;
-			}
+		PeakFitterContext.getPixels(ip.getPixels(), ip.getWidth(), roi, ys);
+		
+		for (int i = 0; i < size; i++) {
+			
+			mask[i] = ys[i] < ip.maxValue();	// ignore saturated values
+			
+			if (mask[i])
+				sortedPixels[n++] = ys[i];
 		}
 		
 		// estimate height and baseline of gaussian peak
-		double[] sortedPixels = Arrays.copyOf(ys, n);
+		sortedPixels = Arrays.copyOf(sortedPixels, n);
 		Arrays.sort(sortedPixels);
 		
 		// 5% lowest, 5% highest
@@ -100,16 +76,18 @@ public static final double SIGMA_TO_FWHM = 2.0 * Math.sqrt(2.0 * Math.log(2));
 		double cy = 0;
 		double totalWeight = 0;
 		
-		for (int i = 0; i < n; i++) {
-			cx += xs[i][0] * ys[i];
-			cy += xs[i][1] * ys[i];
-			totalWeight += ys[i];
+		for (int i = 0; i < size; i++) {
+			if (mask[i]) {
+				cx += (roi.x + i % roi.width) * ys[i];
+				cy += (roi.y + i / roi.width) * ys[i];
+				totalWeight += ys[i];
+			}
 		}
 		
 		cx /= totalWeight;
 		cy /= totalWeight;
 		
-		double[] p = new double[]{min, max - min, cx, cy, sigma};
+		double[] p = new double[]{min, max - min, cx, cy, context.getSigma()};
 		double[] e = new double[5];
 		
 		//IJ.log("");
@@ -120,7 +98,7 @@ public static final double SIGMA_TO_FWHM = 2.0 * Math.sqrt(2.0 * Math.log(2));
 		//IJ.log("sigma     = " + sigma);
 		//IJ.log("");
 		
-		double rSquared = lm.solve(xs, ys, null, n, p, null, e, 0.01);
+		double rSquared = context.solve(roi, mask, ys, p, e, 0.01);
 		boolean valid = true;
 		
 		for (int i = 0; i < p.length && valid; i++)
@@ -129,9 +107,14 @@ public static final double SIGMA_TO_FWHM = 2.0 * Math.sqrt(2.0 * Math.log(2));
 		if (valid && rSquared >= minRSquared) {
 			
 			// calculate residual sum of squares
+			double[] values = new double[size];
+			context.evaluate(roi, p, values);
+			
 			double ssq = 0;
-			for (int i = 0; i < xs.length; i++)
-				ssq += Math.pow(ys[i] - lm.getValue(xs[i], p), 2);
+			for (int i = 0; i < size; i++) {
+				if (mask[i])
+					ssq += Math.pow(ys[i] - values[i], 2);
+			}
 			
 			addToResultsTable(table, p, e, (flags & DOES_STACKS) > 0 ? ip.getSliceNumber() : imp.getCurrentSlice(), rSquared, ssq);
 			
@@ -197,6 +180,8 @@ public static final double SIGMA_TO_FWHM = 2.0 * Math.sqrt(2.0 * Math.log(2));
 		sigma = dialog.getNextNumber();
 		minRSquared = dialog.getNextNumber();
 		
+		contexts = PeakFitterContext.perThread(sigma);
+		
 		return sigma > 0 && minRSquared >= 0;
 	}
 
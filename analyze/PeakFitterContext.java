@@ -0,0 +1,190 @@
+package analyze;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Holds everything that is needed to fit peaks with a 2 dimensional Gaussian
+ * profile: the model, the workspace of the solver and the initial sigma. A
+ * context is not thread safe, plugins that process slices in parallel should
+ * give each thread its own context, for example by using {@link #perThread}.
+ */
+public class PeakFitterContext {
+	
+	private final GaussianPsfModel model = new GaussianPsfModel();
+	private final LevenbergMarquardt.Workspace workspace = new LevenbergMarquardt.Workspace();
+	private final double sigma;
+	private int iterations = 0;
+	
+	public PeakFitterContext(double sigma) {
+		this.sigma = sigma;
+	}
+	
+	/**
+	 * Creates contexts on demand, one for each thread that fits peaks.
+	 */
+	public static ThreadLocal<PeakFitterContext> perThread(final double sigma) {
+		return new ThreadLocal<PeakFitterContext>() {
+			
+			@Override
+			protected PeakFitterContext initialValue() {
+				return new PeakFitterContext(sigma);
+			}
+			
+		};
+	}
+	
+	public double getSigma() {
+		return sigma;
+	}
+	
+	/**
+	 * Returns the number of iterations of the last fit, or 0 if the last
+	 * peak could not be fitted at all.
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+	
+	/**
+	 * Fits a peak to the pixels inside the roi of the image processor.
+	 */
+	public double fitPeak(ImageProcessor ip, double[] p, double[] e) {
+		return fitPeak(ip.getPixels(), ip.getWidth(), ip.getRoi(), ip.maxValue(), p, e);
+	}
+	
+	/**
+	 * Fits a peak to the pixels of a window of an image. The pixels are a
+	 * byte[], short[] or float[] array of an image of the given width, pixels
+	 * with a value of saturation or higher are ignored. The pixel coordinates
+	 * follow from the window, so only the pixel values are copied.
+	 */
+	public double fitPeak(Object pixels, int imageWidth, Rectangle window, double saturation, double[] p, double[] e) {
+		
+		// the values and the mask are reused from fit to fit
+		int size = window.width * window.height;
+		double[] ys = workspace.getData(size);
+		
+		iterations = 0;
+		boolean[] mask = null;
+		
+		getPixels(pixels, imageWidth, window, ys);
+		
+		int max = -1;
+		int min = -1;
+		
+		for (int i = 0; i < size; i++) {
+			
+			if (ys[i] >= saturation) {	// ignore saturated values
+				
+				if (mask == null) {
+					mask = workspace.getMask(size);
+					Arrays.fill(mask, 0, size, true);
+				}
+				
+				mask[i] = false;
+				continue;
+			}
+			
+			if (max < 0 || ys[i] > ys[max])
+				max = i;
+			if (min < 0 || ys[i] < ys[min])
+				min = i;
+		}
+		
+		if (max < 0) {	// all pixels are saturated
+			Arrays.fill(e, Double.NaN);
+			return Double.NaN;
+		}
+		
+		if (!Double.isNaN(p[2]) && !Double.isNaN(p[3])) {
+			p[0] = ys[min];
+			p[1] = getPixel(pixels, (int)p[2] + (int)p[3] * imageWidth) - p[0];
+		}
+		
+		for (int i = 0; i < p.length; i++)
+			if (Double.isNaN(p[i])) p[i] = getGuess(i, ys, min, max, window);
+		
+		return solve(window, mask, ys, p, e, 0.001);
+	}
+	
+	/**
+	 * Fits the model to the pixels of a window, see
+	 * {@link LevenbergMarquardt#solve(Rectangle, boolean[], double[], double[], double[], boolean[], double[], double)}.
+	 */
+	public double solve(Rectangle window, boolean[] mask, double[] y, double[] p, double[] e, double lambda) {
+		
+		double r = model.solve(window, mask, y, null, p, null, e, lambda, workspace);
+		iterations = workspace.getIterations();
+		
+		return r;
+	}
+	
+	/**
+	 * Returns the initial guess of parameter i: the minimum as baseline, the
+	 * maximum above it as height at the position of the maximum, and sigma.
+	 */
+	private double getGuess(int i, double[] ys, int min, int max, Rectangle window) {
+		
+		switch (i) {
+		case 0:
+			return ys[min];
+		case 1:
+			return ys[max] - ys[min];
+		case 2:
+			return window.x + max % window.width;
+		case 3:
+			return window.y + max / window.width;
+		default:
+			return sigma;
+		}
+		
+	}
+	
+	public void evaluate(Rectangle window, double[] p, double[] values) {
+		model.evaluate(window, p, values, null, workspace);
+	}
+	
+	/**
+	 * Copies the pixels of a window of a byte[], short[] or float[] image
+	 * into values, row by row.
+	 */
+	public static void getPixels(Object pixels, int imageWidth, Rectangle window, double[] values) {
+		
+		int i = 0;
+		
+		for (int y = window.y; y < window.y + window.height; y++) {
+			
+			int offset = y * imageWidth + window.x;
+			
+			if (pixels instanceof float[]) {
+				float[] floatPixels = (float[])pixels;
+				for (int x = 0; x < window.width; x++)
+					values[i++] = floatPixels[offset + x];
+			}
+			else if (pixels instanceof short[]) {
+				short[] shortPixels = (short[])pixels;
+				for (int x = 0; x < window.width; x++)
+					values[i++] = shortPixels[offset + x] & 0xffff;
+			}
+			else {
+				byte[] bytePixels = (byte[])pixels;
+				for (int x = 0; x < window.width; x++)
+					values[i++] = bytePixels[offset + x] & 0xff;
+			}
+		}
+	}
+	
+	private static double getPixel(Object pixels, int offset) {
+		
+		if (pixels instanceof float[])
+			return ((float[])pixels)[offset];
+		else if (pixels instanceof short[])
+			return ((short[])pixels)[offset] & 0xffff;
+		else
+			return ((byte[])pixels)[offset] & 0xff;
+	}
+	
+}
@@ -1,7 +1,6 @@
 package analyze;
 
 import java.awt.Color;
-import java.util.ArrayList;
 import java.util.Arrays;
 
 import ij.IJ;
@@ -9,6 +8,8 @@ import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.IntColumn;
 
 public class StepSizeDistribution implements PlugIn {
 
@@ -41,52 +42,12 @@ public class StepSizeDistribution implements PlugIn {
 		binning = dialog.getNextNumber();
 		minStepSize = dialog.getNextNumber();
 		
-		// determine which rows belong to which trajectory
-		ArrayList<Integer> offsets = new ArrayList<Integer>();
-		offsets.add(0);
-		
-		for (int row = 1; row < table.getCounter(); row++) {
-			int s0 = (int)table.getValue("trajectory", row - 1);
-			int s1 = (int)table.getValue("trajectory", row);
-			
-			if (s0 != s1)
-				offsets.add(row);
-		}
-		
-		offsets.add(table.getCounter());
-		
-		ArrayList<Double> stepSizes = new ArrayList<Double>();
+		double[] stepSizes = getStepSizes(LocalizationTable.fromResultsTable(table));
 		double maxStepSize = 0;
 		
-		for (int i = 0; i < offsets.size() - 1; i++) {
-			int from = offsets.get(i);
-			int to = offsets.get(i + 1);
-			int trajectory = (int)table.getValue("trajectory", from);
-			
-			if (trajectory >= 0) {
-				
-				for (int row = from; row < to - 1; row++) {
-					int s1 = (int)table.getValue("slice", row);
-					double x1 = table.getValue("x", row);
-					double y1 = table.getValue("y", row);
-
-					int s2 = (int)table.getValue("slice", row + 1);
-					double x2 = table.getValue("x", row + 1);
-					double y2 = table.getValue("y", row + 1);
-					
-					if (s2 - s1 == 1) {
-						double dx = x2 - x1;
-						double dy = y2 - y1;
-						double stepSize = Math.sqrt(dx * dx + dy * dy) * pixelSize;
-						
-						if (stepSize > maxStepSize )
-							maxStepSize = stepSize;
-						
-						stepSizes.add(stepSize);
-					}
-				}
-				
-			}
+		for (double stepSize: stepSizes) {
+			if (stepSize > maxStepSize)
+				maxStepSize = stepSize;
 		}
 		
 		// create distribution
@@ -103,11 +64,11 @@ public class StepSizeDistribution implements PlugIn {
 			msd += stepSize * stepSize;
 		}
 
-		msd /= stepSizes.size();
+		msd /= stepSizes.length;
 		
 		// normalize
 		for (int i = 0; i < probabilities.length; i++) {
-			probabilities[i] /= (stepSizes.size() * binning);
+			probabilities[i] /= (stepSizes.length * binning);
 			steps[i] = (i + 0.5) * binning;
 			steps2[i][0] = steps[i];
 		}
@@ -168,6 +129,53 @@ public class StepSizeDistribution implements PlugIn {
 
 	}
 	
+	/**
+	 * Determines the step sizes (in um) between consecutive slices of all
+	 * trajectories of a table that is sorted on trajectory and slice.
+	 */
+	public double[] getStepSizes(LocalizationTable table) {
+		
+		IntColumn trajectories = table.getIntColumn("trajectory");
+		IntColumn slices = table.getIntColumn("slice");
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		
+		// determine which rows belong to which trajectory
+		int[] offsets = table.getGroups("trajectory");
+		
+		double[] stepSizes = new double[table.size()];
+		int n = 0;
+		
+		for (int i = 0; i < offsets.length - 1; i++) {
+			int from = offsets[i];
+			int to = offsets[i + 1];
+			int trajectory = trajectories.get(from);
+			
+			if (trajectory >= 0) {
+				
+				for (int row = from; row < to - 1; row++) {
+					int s1 = slices.get(row);
+					double x1 = xs.get(row);
+					double y1 = ys.get(row);
+
+					int s2 = slices.get(row + 1);
+					double x2 = xs.get(row + 1);
+					double y2 = ys.get(row + 1);
+					
+					if (s2 - s1 == 1) {
+						double dx = x2 - x1;
+						double dy = y2 - y1;
+						
+						stepSizes[n++] = Math.sqrt(dx * dx + dy * dy) * pixelSize;
+					}
+				}
+				
+			}
+		}
+		
+		return Arrays.copyOf(stepSizes, n);
+	}
+	
 	public double func(double r, double msd) {
 		// obtained from "A Wide-Field View at Single Molecules and Single Particles" by F. Lusitani (p. 43)
 		return ((2 * r) / msd) * Math.exp(-((r * r) / msd));
@@ -0,0 +1,577 @@
+package analyze;
+
+import java.util.Arrays;
+
+import util.Parameters;
+import analyze.LocalizationTable.Column;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.FloatColumn;
+import analyze.LocalizationTable.IntColumn;
+
+/**
+ * Links peaks into trajectories while the slices are localized, instead of
+ * tracking a complete table afterwards as the {@link ParticleTracker} does.
+ * Slices are added one at a time in increasing order, for example directly
+ * from the peak fitter (the tracker is a sink of a {@link FramePipeline}).
+ *
+ * The links are the same as those of the particle tracker with greedy
+ * linking (optimal linking and the motion model are not supported). The peaks
+ * of a slice are linked as soon as the slices up to lookAhead slices later
+ * have been added, slice by slice in increasing order, so that peaks of older
+ * slices claim peaks across a gap before peaks of newer slices do, exactly
+ * as in the particle tracker. Only the peaks of those slices take part in
+ * linking, the work per slice does not depend on how many rows are held.
+ *
+ * Once a slice is linked its peaks can no longer change, they are either
+ * dropped (or handed on, if non-trajectories are kept) or stored with their
+ * trajectory. A trajectory is finished once none of its peaks can still be
+ * linked, its rows are then handed to the trajectory sink and removed from
+ * the tracker. The rows of a trajectory are held until then because the
+ * trajectory length of every row is only known at the end, so memory depends
+ * on the number of peaks in the open trajectories: a particle that stays in
+ * view for the whole movie keeps all its peaks in memory.
+ *
+ * The trajectories are given to the sink with the same columns and the same
+ * trajectory numbers as the particle tracker gives them, with the rows of
+ * each batch sorted on trajectory and slice (the particle tracker sorts all
+ * rows at once, so only the order of the batches differs).
+ */
+public class StreamingTracker implements FramePipeline.LocalizationSink {
+	
+	public interface TrajectorySink {
+		
+		/**
+		 * Receives the rows of the trajectories that were finished.
+		 */
+		void add(LocalizationTable trajectories);
+		
+	}
+	
+	private final int lookAhead;
+	private final double maxStepSize;
+	private final boolean keepNonTrajectories;
+	private final TrajectorySink sink;
+	
+	// rows of the slices that are not linked yet, in slice order, the
+	// trajectory column holds the slot of the trajectory
+	private final LocalizationTable rows = new LocalizationTable();
+	private int lastSlice = Integer.MIN_VALUE;
+	
+	// rows of linked slices that belong to an open trajectory, in the order
+	// they were linked, the rows of a slot form a list through nextRows
+	private final LocalizationTable trajectoryRows = new LocalizationTable();
+	private int[] nextRows = new int[256];
+	private boolean[] isEmitted = new boolean[256];
+	private int emittedCount = 0;
+	
+	// open trajectories are kept in slots that are reused after they finish,
+	// a slot knows its rows that are not linked yet and its first and last
+	// linked row, the trajectory of a free slot is -1
+	private int[] slotTrajectories = new int[256];
+	private int[] slotOpenRows = new int[256];
+	private int[] slotFirstRows = new int[256];
+	private int[] slotLastRows = new int[256];
+	private int[] slotLengths = new int[256];
+	private int[] freeSlots = new int[256];
+	private int freeSlotCount = 0;
+	private int slotCount = 0;
+	private int trajectoryCount = 0;
+	
+	// slots of which the last row was linked, they are handed to the sink
+	// after the current slices are linked
+	private int[] finishedSlots = new int[256];
+	private int finishedSlotCount = 0;
+	
+	// rows of the current batch that are not part of a trajectory
+	private LocalizationTable nonTrajectories = null;
+	
+	// scratch space that is reused from slice to slice
+	private final LinkCandidates links = new LinkCandidates();
+	private boolean[] linked = new boolean[256];
+	private boolean[] delete = new boolean[256];
+	
+	/**
+	 * Creates a tracker with the settings of the particle tracker.
+	 */
+	public StreamingTracker(TrajectorySink sink) {
+		this(Parameters.getInt("ParticleTracker.lookAhead", 1), Parameters.getDouble("ParticleTracker.maxStepSize", 8), Parameters.getBoolean("ParticleTracker.keepNonTrajectories", false), sink);
+	}
+	
+	public StreamingTracker(int lookAhead, double maxStepSize, boolean keepNonTrajectories, TrajectorySink sink) {
+		this.lookAhead = Math.max(lookAhead, 0);
+		this.maxStepSize = maxStepSize;
+		this.keepNonTrajectories = keepNonTrajectories;
+		this.sink = sink;
+	}
+	
+	/**
+	 * Adds the peaks fitted in a slice.
+	 */
+	@Override
+	public void add(int slice, LocalizationBuffer fits) {
+		add(slice, fits.toLocalizationTable());
+	}
+	
+	/**
+	 * Adds the peaks of a slice, which should come after all slices that were
+	 * added before. Slices without peaks may be left out.
+	 */
+	public void add(int slice, LocalizationTable peaks) {
+		
+		if (slice <= lastSlice)
+			throw new IllegalArgumentException("slice " + slice + " is added after slice " + lastSlice);
+		
+		lastSlice = slice;
+		
+		// the slices more than lookAhead slices back can not be linked to
+		// this or later slices, so all their links are known
+		link(slice - lookAhead - 1);
+		
+		append(slice, peaks);
+	}
+	
+	/**
+	 * Links the remaining slices and finishes all open trajectories, after
+	 * the last slice is added.
+	 */
+	public void finish() {
+		link(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Returns the number of rows that are held by the tracker.
+	 */
+	public int size() {
+		return rows.size() + trajectoryRows.size() - emittedCount;
+	}
+	
+	private void append(int slice, LocalizationTable peaks) {
+		
+		String[] names = peaks.getColumnNames();
+		Column[] sources = new Column[names.length];
+		Column[] targets = new Column[names.length];
+		
+		// the first slice determines the type of a column
+		for (int i = 0; i < names.length; i++) {
+			sources[i] = peaks.getColumn(names[i]);
+			
+			if (!rows.hasColumn(names[i]))
+				getColumn(rows, names[i], sources[i]);
+		}
+		
+		IntColumn slices = rows.addIntColumn("slice");
+		IntColumn trajectories = rows.addIntColumn("trajectory");
+		rows.addDoubleColumn("step_size");
+		rows.addDoubleColumn("dx");
+		rows.addDoubleColumn("dy");
+		rows.addDoubleColumn("displacement_sq");
+		rows.addIntColumn("trajectory_length");
+		
+		// the columns above may have replaced columns of another type
+		for (int i = 0; i < names.length; i++)
+			targets[i] = rows.getColumn(names[i]);
+		
+		for (int i = 0; i < peaks.size(); i++) {
+			
+			int row = rows.addRow();
+			
+			for (int j = 0; j < names.length; j++)
+				targets[j].setDouble(row, sources[j].getDouble(i));
+			
+			slices.set(row, slice);
+			trajectories.set(row, -1);
+		}
+		
+	}
+	
+	/**
+	 * Links the peaks of the slices up to maxSlice that were not linked yet,
+	 * slice by slice, moves their rows out of the rows to link and hands the
+	 * trajectories that are finished to the sink.
+	 */
+	private void link(int maxSlice) {
+		
+		if (rows.size() == 0)
+			return;
+		
+		IntColumn slices = rows.getIntColumn("slice");
+		int from = 0;
+		
+		while (from < rows.size() && slices.get(from) <= maxSlice) {
+			
+			int to = getFirstRow(slices, slices.get(from) + 1);
+			
+			link(slices, from, to);
+			from = to;
+		}
+		
+		if (from == 0)
+			return;
+		
+		store(from);
+		emit();
+	}
+	
+	/**
+	 * Returns the first row of a slice at or after the given slice.
+	 */
+	private int getFirstRow(IntColumn slices, int slice) {
+		
+		int low = 0;
+		int high = rows.size();
+		
+		while (low < high) {
+			
+			int middle = (low + high) >>> 1;
+			
+			if (slices.get(middle) < slice)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * Links the rows from up to to (a single slice) to the rows of the next
+	 * lookAhead slices, in the same way as the particle tracker does: the
+	 * links to the nearest slice and the shortest links first, and a peak that
+	 * was linked to from an earlier slice can be taken over.
+	 */
+	private void link(IntColumn slices, int from, int to) {
+		
+		if (maxStepSize <= 0 || lookAhead == 0)
+			return;
+		
+		DoubleColumn xs = rows.getDoubleColumn("x");
+		DoubleColumn ys = rows.getDoubleColumn("y");
+		IntColumn trajectories = rows.getIntColumn("trajectory");
+		DoubleColumn stepSizes = rows.getDoubleColumn("step_size");
+		DoubleColumn dxs = rows.getDoubleColumn("dx");
+		DoubleColumn dys = rows.getDoubleColumn("dy");
+		DoubleColumn displacements = rows.getDoubleColumn("displacement_sq");
+		
+		int s1 = slices.get(from);
+		int end = getFirstRow(slices, s1 + lookAhead + 1);
+		
+		// the same grid of cells of the max step size as the particle tracker
+		double cellSize = maxStepSize * (1 + 1e-6);
+		links.clear();
+		
+		for (int from2 = to; from2 < end; ) {
+			
+			int s2 = slices.get(from2);
+			int to2 = getFirstRow(slices, s2 + 1);
+			ParticleTracker.Grid grid = new ParticleTracker.Grid(xs, ys, from2, to2, cellSize);
+			
+			for (int row1 = from; row1 < to; row1++) {
+				
+				double x1 = xs.get(row1);
+				double y1 = ys.get(row1);
+				long cellX = grid.getCell(x1);
+				long cellY = grid.getCell(y1);
+				
+				for (long cx = cellX - 1; cx <= cellX + 1; cx++) {
+					for (long cy = cellY - 1; cy <= cellY + 1; cy++) {
+						
+						int cell = grid.find(cx, cy);
+						
+						for (int k = cell < 0 ? 0 : grid.starts[cell]; cell >= 0 && k < grid.starts[cell + 1]; k++) {
+							
+							int row2 = grid.rows[k];
+							double dx = xs.get(row2) - x1;
+							double dy = ys.get(row2) - y1;
+							double dsq = dx * dx + dy * dy;
+							
+							if (dsq < maxStepSize * maxStepSize)
+								links.add(s2 - s1, dsq, row1, row2);
+							
+						}
+						
+					}
+				}
+				
+			}
+			
+			from2 = to2;
+		}
+		
+		links.sort();
+		
+		if (linked.length < end)
+			linked = new boolean[Math.max(end, linked.length * 2)];
+		
+		for (int k = 0; k < links.size(); k++) {
+			
+			int r1 = links.getRow1(k);
+			int r2 = links.getRow2(k);
+			
+			if (linked[r1] || linked[r2])
+				continue;
+			
+			int slot = trajectories.get(r1);
+			
+			if (slot < 0) {
+				slot = startTrajectory();
+				trajectories.set(r1, slot);
+				slotOpenRows[slot]++;
+			}
+			
+			// a peak that is taken over leaves its former trajectory
+			int oldSlot = trajectories.get(r2);
+			
+			if (oldSlot >= 0 && --slotOpenRows[oldSlot] == 0)
+				addFinishedSlot(oldSlot);
+			
+			double dsq = links.getDistance(k);
+			
+			trajectories.set(r2, slot);
+			slotOpenRows[slot]++;
+			dxs.set(r2, xs.get(r2) - xs.get(r1));
+			dys.set(r2, ys.get(r2) - ys.get(r1));
+			stepSizes.set(r2, Math.sqrt(dsq));
+			displacements.set(r2, dsq);
+			
+			linked[r1] = true;
+			linked[r2] = true;
+		}
+		
+		// the links of the next slice are filtered independently
+		for (int k = 0; k < links.size(); k++) {
+			linked[links.getRow1(k)] = false;
+			linked[links.getRow2(k)] = false;
+		}
+		
+	}
+	
+	/**
+	 * Moves the first count rows, which are linked and can no longer change,
+	 * to the rows of their trajectory, or to the non-trajectories of the
+	 * current batch.
+	 */
+	private void store(int count) {
+		
+		String[] names = rows.getColumnNames();
+		Column[] sources = new Column[names.length];
+		Column[] targets = getColumns(trajectoryRows, rows, names, sources);
+		Column[] nonTargets = null;
+		IntColumn trajectories = rows.getIntColumn("trajectory");
+		
+		if (keepNonTrajectories) {
+			
+			if (nonTrajectories == null)
+				nonTrajectories = new LocalizationTable();
+			
+			nonTargets = getColumns(nonTrajectories, rows, names, sources);
+		}
+		
+		for (int row = 0; row < count; row++) {
+			
+			int slot = trajectories.get(row);
+			
+			if (slot < 0) {
+				
+				if (nonTargets != null)
+					copyRow(sources, row, nonTargets, nonTrajectories.addRow());
+				
+				continue;
+			}
+			
+			int newRow = trajectoryRows.addRow();
+			copyRow(sources, row, targets, newRow);
+			
+			if (newRow == nextRows.length) {
+				nextRows = Arrays.copyOf(nextRows, newRow * 2);
+				isEmitted = Arrays.copyOf(isEmitted, newRow * 2);
+			}
+			
+			nextRows[newRow] = -1;
+			
+			if (slotLengths[slot]++ == 0)
+				slotFirstRows[slot] = newRow;
+			else
+				nextRows[slotLastRows[slot]] = newRow;
+			
+			slotLastRows[slot] = newRow;
+			
+			if (--slotOpenRows[slot] == 0)
+				addFinishedSlot(slot);
+		}
+		
+		if (delete.length < rows.size())
+			delete = new boolean[Math.max(rows.size(), delete.length * 2)];
+		
+		Arrays.fill(delete, 0, count, true);
+		Arrays.fill(delete, count, rows.size(), false);
+		rows.deleteRows(delete);
+	}
+	
+	/**
+	 * Hands the finished trajectories and the non-trajectories of the current
+	 * batch to the sink, with trajectory numbers and lengths and sorted on
+	 * trajectory and slice.
+	 */
+	private void emit() {
+		
+		if (finishedSlotCount == 0 && (nonTrajectories == null || nonTrajectories.size() == 0))
+			return;
+		
+		String[] names = trajectoryRows.getColumnNames();
+		Column[] sources = new Column[names.length];
+		LocalizationTable table = nonTrajectories != null ? nonTrajectories : new LocalizationTable();
+		Column[] targets = getColumns(table, trajectoryRows, names, sources);
+		int first = table.size();
+		
+		for (int i = 0; i < finishedSlotCount; i++) {
+			
+			int slot = finishedSlots[i];
+			
+			for (int row = slotFirstRows[slot]; row >= 0; row = nextRows[row]) {
+				copyRow(sources, row, targets, table.addRow());
+				isEmitted[row] = true;
+				emittedCount++;
+			}
+			
+		}
+		
+		IntColumn trajectories = table.addIntColumn("trajectory");
+		IntColumn trajectoryLengths = table.addIntColumn("trajectory_length");
+		
+		for (int row = 0; row < first; row++)
+			trajectoryLengths.set(row, 1);
+		
+		for (int i = 0, row = first; i < finishedSlotCount; i++) {
+			
+			int slot = finishedSlots[i];
+			
+			for (int j = 0; j < slotLengths[slot]; j++, row++) {
+				trajectories.set(row, slotTrajectories[slot]);
+				trajectoryLengths.set(row, slotLengths[slot]);
+			}
+			
+			freeSlot(slot);
+		}
+		
+		finishedSlotCount = 0;
+		nonTrajectories = null;
+		
+		table.sort("trajectory", "slice");
+		sink.add(table);
+		
+		// the emitted rows are removed once they make up half of the rows
+		if (emittedCount > 0 && emittedCount >= trajectoryRows.size() / 2)
+			compact();
+	}
+	
+	/**
+	 * Removes the emitted rows from the rows of the open trajectories and
+	 * renumbers the lists of the slots.
+	 */
+	private void compact() {
+		
+		int[] newRows = new int[trajectoryRows.size()];
+		
+		for (int row = 0, n = 0; row < trajectoryRows.size(); row++)
+			newRows[row] = isEmitted[row] ? -1 : n++;
+		
+		for (int row = 0; row < trajectoryRows.size(); row++) {
+			if (!isEmitted[row])
+				nextRows[newRows[row]] = nextRows[row] < 0 ? -1 : newRows[nextRows[row]];
+		}
+		
+		for (int slot = 0; slot < slotCount; slot++) {
+			if (slotTrajectories[slot] >= 0 && slotLengths[slot] > 0) {
+				slotFirstRows[slot] = newRows[slotFirstRows[slot]];
+				slotLastRows[slot] = newRows[slotLastRows[slot]];
+			}
+		}
+		
+		trajectoryRows.deleteRows(isEmitted);
+		Arrays.fill(isEmitted, false);
+		emittedCount = 0;
+	}
+	
+	/**
+	 * Returns the columns of target that match the columns of source with the
+	 * given names, which are stored in sources. Missing columns are added with
+	 * the type of the column of source.
+	 */
+	private static Column[] getColumns(LocalizationTable target, LocalizationTable source, String[] names, Column[] sources) {
+		
+		Column[] targets = new Column[names.length];
+		
+		for (int i = 0; i < names.length; i++) {
+			sources[i] = source.getColumn(names[i]);
+			
+			if (!target.hasColumn(names[i]))
+				getColumn(target, names[i], sources[i]);
+		}
+		
+		// adding a column never changes the type of another one
+		for (int i = 0; i < names.length; i++)
+			targets[i] = target.getColumn(names[i]);
+		
+		return targets;
+	}
+	
+	private static void copyRow(Column[] sources, int row, Column[] targets, int newRow) {
+		for (int i = 0; i < sources.length; i++)
+			targets[i].setDouble(newRow, sources[i].getDouble(row));
+	}
+	
+	/**
+	 * Returns a column of the table of the same type as the given column.
+	 */
+	private static Column getColumn(LocalizationTable table, String name, Column column) {
+		
+		if (column instanceof IntColumn)
+			return table.addIntColumn(name);
+		else if (column instanceof FloatColumn)
+			return table.addFloatColumn(name);
+		else
+			return table.addDoubleColumn(name);
+	}
+	
+	/**
+	 * Returns a slot for a new trajectory without rows.
+	 */
+	private int startTrajectory() {
+		
+		int slot;
+		
+		if (freeSlotCount > 0) {
+			slot = freeSlots[--freeSlotCount];
+		}
+		else {
+			
+			if (slotCount == slotTrajectories.length) {
+				slotTrajectories = Arrays.copyOf(slotTrajectories, slotCount * 2);
+				slotOpenRows = Arrays.copyOf(slotOpenRows, slotCount * 2);
+				slotFirstRows = Arrays.copyOf(slotFirstRows, slotCount * 2);
+				slotLastRows = Arrays.copyOf(slotLastRows, slotCount * 2);
+				slotLengths = Arrays.copyOf(slotLengths, slotCount * 2);
+				freeSlots = Arrays.copyOf(freeSlots, slotCount * 2);
+				finishedSlots = Arrays.copyOf(finishedSlots, slotCount * 2);
+			}
+			
+			slot = slotCount++;
+		}
+		
+		slotTrajectories[slot] = trajectoryCount++;
+		slotOpenRows[slot] = 0;
+		slotLengths[slot] = 0;
+		
+		return slot;
+	}
+	
+	private void addFinishedSlot(int slot) {
+		finishedSlots[finishedSlotCount++] = slot;
+	}
+	
+	private void freeSlot(int slot) {
+		slotTrajectories[slot] = -1;
+		freeSlots[freeSlotCount++] = slot;
+	}
+	
+}
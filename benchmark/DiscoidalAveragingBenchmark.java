@@ -0,0 +1,74 @@
+package benchmark;
+
+import java.util.Random;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import process.DiscoidalAveragingFilter;
+
+/**
+ * Compares the throughput of the scalar and the vector code of the discoidal
+ * averaging filter on 16-bit and 32-bit frames of random noise. Each setting
+ * is run twice, the first run warms up the compiler. The vector setting also
+ * sums 32-bit frames with the vector kernel, which the filter only does on
+ * request. The vector kernel is only used when it was built (from the vector
+ * source root) and Fiji is started with --add-modules jdk.incubator.vector,
+ * otherwise both settings run the scalar code.
+ */
+public class DiscoidalAveragingBenchmark implements PlugIn {
+	
+	@Override
+	public void run(String arg) {
+		
+		GenericDialog dialog = new GenericDialog("Discoidal Averaging Benchmark");
+		dialog.addNumericField("Width", 512, 0);
+		dialog.addNumericField("Height", 512, 0);
+		dialog.addNumericField("Frames", 200, 0);
+		dialog.addNumericField("Inner_radius", 1, 0);
+		dialog.addNumericField("Outer_radius", 3, 0);
+		dialog.showDialog();
+		
+		if (dialog.wasCanceled())
+			return;
+		
+		int width = (int)dialog.getNextNumber();
+		int height = (int)dialog.getNextNumber();
+		int frames = (int)dialog.getNextNumber();
+		int innerRadius = (int)dialog.getNextNumber();
+		int outerRadius = (int)dialog.getNextNumber();
+		
+		Random random = new Random(0);
+		ImageProcessor[] images = new ImageProcessor[] {new ShortProcessor(width, height), new FloatProcessor(width, height)};
+		
+		for (ImageProcessor ip: images) {
+			for (int i = 0; i < width * height; i++)
+				ip.setf(i, (float)(1000 + 100 * random.nextGaussian()));
+		}
+		
+		DiscoidalAveragingFilter filter = new DiscoidalAveragingFilter(width, innerRadius, outerRadius);
+		
+		for (ImageProcessor ip: images) {
+			for (boolean useVectorKernel: new boolean[]{false, true, false, true}) {
+				
+				filter.setUseVectorKernel(useVectorKernel);
+				filter.setUseVectorKernelForFloat(useVectorKernel);
+				
+				long start = System.nanoTime();
+				
+				for (int i = 0; i < frames; i++)
+					filter.run(ip.duplicate());
+				
+				double seconds = (System.nanoTime() - start) / 1e9;
+				
+				IJ.log(String.format("%d-bit %s : %.1f frames/s", ip instanceof ShortProcessor ? 16 : 32,
+						useVectorKernel ? "vector" : "scalar", frames / seconds));
+			}
+		}
+		
+	}
+	
+}
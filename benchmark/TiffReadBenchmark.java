@@ -0,0 +1,133 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.OpenDialog;
+import ij.io.Opener;
+import ij.plugin.PlugIn;
+import util.MappedTiffStack;
+
+/**
+ * Measures the read throughput of a TIFF file opened by the ImageJ opener,
+ * opened as a mapped tiff stack and read through the views of a mapped tiff
+ * stack. Every pixel of every frame is summed so that all pixels are actually
+ * read, the sums should be equal. The operating system caches the file after
+ * the first read, run the benchmark twice to compare reads from memory.
+ */
+public class TiffReadBenchmark implements PlugIn {
+	
+	@Override
+	public void run(String arg) {
+		
+		OpenDialog dialog = new OpenDialog("TIFF Read Benchmark", arg);
+		
+		if (dialog.getFileName() == null)
+			return;
+		
+		String path = dialog.getPath();
+		
+		try {
+			
+			long start = System.nanoTime();
+			ImagePlus imp = new Opener().openImage(path);
+			
+			if (imp == null) {
+				IJ.error("TIFF Read Benchmark", "could not open " + path);
+				return;
+			}
+			
+			double opened = seconds(start);
+			double sum = sum(imp.getStack());
+			log("Opener", imp.getStack(), opened, seconds(start), sum);
+			
+			imp.close();
+			
+			start = System.nanoTime();
+			MappedTiffStack stack = MappedTiffStack.open(path);
+			opened = seconds(start);
+			sum = sum(stack);
+			log("Mapped (processors)", stack, opened, seconds(start), sum);
+			
+			start = System.nanoTime();
+			stack = MappedTiffStack.open(path);
+			opened = seconds(start);
+			sum = sumViews(stack);
+			log("Mapped (views)", stack, opened, seconds(start), sum);
+			
+		}
+		catch (IOException e) {
+			IJ.error("TIFF Read Benchmark", e.getMessage());
+		}
+		
+	}
+	
+	private static double sum(ImageStack stack) {
+		
+		double sum = 0;
+		
+		for (int n = 1; n <= stack.getSize(); n++) {
+			
+			Object pixels = stack.getProcessor(n).getPixels();
+			
+			if (pixels instanceof byte[]) {
+				for (byte value: (byte[])pixels)
+					sum += value & 0xff;
+			}
+			else if (pixels instanceof short[]) {
+				for (short value: (short[])pixels)
+					sum += value & 0xffff;
+			}
+			else {
+				for (float value: (float[])pixels)
+					sum += value;
+			}
+			
+		}
+		
+		return sum;
+	}
+	
+	private static double sumViews(MappedTiffStack stack) {
+		
+		double sum = 0;
+		
+		for (int n = 1; n <= stack.getSize(); n++) {
+			
+			ByteBuffer buffer = stack.getBuffer(n);
+			
+			switch (stack.getBitDepth()) {
+			case 8:
+				for (int i = 0; i < buffer.limit(); i++)
+					sum += buffer.get(i) & 0xff;
+				break;
+			case 16:
+				for (int i = 0; i < buffer.limit(); i += 2)
+					sum += buffer.getShort(i) & 0xffff;
+				break;
+			default:
+				for (int i = 0; i < buffer.limit(); i += 4)
+					sum += buffer.getFloat(i);
+				break;
+			}
+			
+		}
+		
+		return sum;
+	}
+	
+	private static void log(String method, ImageStack stack, double opened, double total, double sum) {
+		
+		double megabytes = (double)stack.getWidth() * stack.getHeight() * (stack.getBitDepth() / 8) * stack.getSize() / (1024 * 1024);
+		
+		IJ.log(String.format("%-20s open %8.3f s  total %8.3f s  %10.1f MB/s  sum %.0f", method, opened, total, megabytes / total, sum));
+	}
+	
+	private static double seconds(long start) {
+		return (System.nanoTime() - start) / 1e9;
+	}
+	
+}
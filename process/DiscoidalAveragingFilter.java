@@ -6,24 +6,80 @@ import java.util.ArrayList;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.plugin.filter.ExtendedPlugInFilter;
 import ij.plugin.filter.PlugInFilterRunner;
 import ij.process.ImageProcessor;
+import util.Parameters;
 
 public class DiscoidalAveragingFilter implements ExtendedPlugInFilter, DialogListener {
 
 	private int flags = DOES_8G | DOES_16 | DOES_32 | PARALLELIZE_STACKS;
 	
-	private int innerRadius = Prefs.getInt("DiscoidalAveragingFilter.innerRadius", 1);
-	private int outerRadius = Prefs.getInt("DiscoidalAveragingFilter.outerRadius", 4);
+	private int innerRadius = Parameters.getInt("DiscoidalAveragingFilter.innerRadius", 1);
+	private int outerRadius = Parameters.getInt("DiscoidalAveragingFilter.outerRadius", 4);
+	private boolean useVectorKernel = Parameters.getBoolean("DiscoidalAveragingFilter.useVectorKernel", true);
+	
+	// the vector kernel sums in single precision, which is exact for 8-bit and
+	// 16-bit pixels but not for 32-bit pixels, so those are only summed with
+	// it on request
+	private boolean useVectorKernelForFloat = Parameters.getBoolean("DiscoidalAveragingFilter.useVectorKernelForFloat", false);
+	
+	// null when the vector kernel was not built or the jdk.incubator.vector
+	// module is not available
+	private static final DiscoidalAveragingKernel vectorKernel = createVectorKernel();
 	
 	private ImagePlus imp;
+	
 	private int[] innerOffsets;
 	private int[] outerOffsets;
 	
+	// the inner disc and outer circle as rectangles (x0, y0, x1, y1) relative to the center
+	private int[] innerRectangles;
+	private int[] outerRectangles;
+	private int radius;
+	private int width;
+	
+	// each thread reuses its buffers as long as the frame size does not change
+	private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		
+		@Override
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+		
+	};
+	
+	private static class Buffers {
+		
+		private float[] output = new float[0];
+		private float[] pixels = new float[0];
+		private double[] table = new double[0];
+		private float[] innerSums = new float[0];
+		private float[] outerSums = new float[0];
+		private double[] inner = new double[2];
+		private double[] outer = new double[2];
+		
+		private void ensureCapacity(int width, int height, boolean isTable) {
+			
+			if (pixels.length != width * height)
+				pixels = new float[width * height];
+			
+			// the first row and column of the table are never written, so
+			// they stay 0 when the table is reused
+			if (isTable && table.length != (width + 1) * (height + 1))
+				table = new double[(width + 1) * (height + 1)];
+			
+			if (innerSums.length != width) {
+				innerSums = new float[width];
+				outerSums = new float[width];
+			}
+			
+		}
+		
+	}
+	
 	public DiscoidalAveragingFilter() {
 		
 	}
@@ -32,24 +88,61 @@ public class DiscoidalAveragingFilter implements ExtendedPlugInFilter, DialogLis
 		setCircleOffsets(width, innerRadius, outerRadius);
 	}
 	
+	private static DiscoidalAveragingKernel createVectorKernel() {
+		
+		try {
+			return (DiscoidalAveragingKernel)Class.forName("process.VectorDiscoidalAveragingKernel").getDeclaredConstructor().newInstance();
+		}
+		catch (Throwable e) {
+			return null;
+		}
+		
+	}
+	
+	public void setUseVectorKernel(boolean useVectorKernel) {
+		this.useVectorKernel = useVectorKernel;
+	}
+	
+	/**
+	 * Sets whether 32-bit frames are summed with the vector kernel as well,
+	 * which is faster but not numerically identical to the scalar code.
+	 */
+	public void setUseVectorKernelForFloat(boolean useVectorKernelForFloat) {
+		this.useVectorKernelForFloat = useVectorKernelForFloat;
+	}
+	
 	public void setCircleOffsets(int width, int innerRadius, int outerRadius) {
 		ArrayList<Integer> innerOffsetList = new ArrayList<Integer>();
 		ArrayList<Integer> outerOffsetList = new ArrayList<Integer>();
 		
+		this.width = width;
+		this.innerRadius = innerRadius;
+		this.outerRadius = outerRadius;
+		radius = Math.max(innerRadius, outerRadius);
+		boolean[][] innerMask = new boolean[radius * 2 + 1][radius * 2 + 1];
+		boolean[][] outerMask = new boolean[radius * 2 + 1][radius * 2 + 1];
+		
 		for (int y = -outerRadius; y <= outerRadius; y++) {
 			for (int x = -outerRadius; x <= outerRadius; x++) {
 				double d = Math.round(Math.sqrt(x * x + y * y));
 				int offset = x + y * width;
 
-				if (d <= innerRadius)
+				if (d <= innerRadius) {
 					innerOffsetList.add(offset);
+					innerMask[y + radius][x + radius] = true;
+				}
 				
-				if (d == outerRadius)
+				if (d == outerRadius) {
 					outerOffsetList.add(offset);
+					outerMask[y + radius][x + radius] = true;
+				}
 				
 			}
 		}
 		
+		innerRectangles = getRectangles(innerMask, radius);
+		outerRectangles = getRectangles(outerMask, radius);
+		
 		innerOffsets = new int[innerOffsetList.size()];
 		outerOffsets = new int[outerOffsetList.size()];
 		
@@ -60,70 +153,412 @@ public class DiscoidalAveragingFilter implements ExtendedPlugInFilter, DialogLis
 			outerOffsets[i] = outerOffsetList.get(i);
 	}
 	
+	/**
+	 * Splits a mask into rectangles by merging consecutive rows that have the
+	 * same runs of pixels.
+	 */
+	private static int[] getRectangles(boolean[][] mask, int radius) {
+		ArrayList<Integer> rectangles = new ArrayList<Integer>();
+		ArrayList<Integer> runs = new ArrayList<Integer>();
+		ArrayList<Integer> previousRuns = new ArrayList<Integer>();
+		int y0 = -radius;
+		
+		for (int y = -radius; y <= radius + 1; y++) {
+			
+			runs.clear();
+			
+			if (y <= radius) {
+				for (int x = -radius; x <= radius; x++) {
+					
+					if (mask[y + radius][x + radius] && (x == -radius || !mask[y + radius][x + radius - 1]))
+						runs.add(x);
+					
+					if (mask[y + radius][x + radius] && (x == radius || !mask[y + radius][x + radius + 1]))
+						runs.add(x);
+				}
+			}
+			
+			if (!runs.equals(previousRuns)) {
+				
+				for (int i = 0; i < previousRuns.size(); i += 2) {
+					rectangles.add(previousRuns.get(i));
+					rectangles.add(y0);
+					rectangles.add(previousRuns.get(i + 1));
+					rectangles.add(y - 1);
+				}
+				
+				previousRuns.clear();
+				previousRuns.addAll(runs);
+				y0 = y;
+			}
+		}
+		
+		int[] array = new int[rectangles.size()];
+		
+		for (int i = 0; i < array.length; i++)
+			array[i] = rectangles.get(i);
+		
+		return array;
+	}
+	
+	/**
+	 * Copies the 8-bit, 16-bit or 32-bit pixel array to a float array and
+	 * fills the summed-area table in the same pass. Each entry (x + 1, y + 1)
+	 * of the table holds the sum of all pixels above and to the left of (x, y),
+	 * inclusive. A NaN or infinite pixel spoils every entry below and to the
+	 * right of it, this is the case when the last entry is not finite. If the
+	 * table is null only the pixels are copied.
+	 */
+	private static void copyPixels(Object pixels, int width, int height, float[] copy, double[] table) {
+		int tableWidth = width + 1;
+		
+		if (table == null) {
+			
+			if (pixels instanceof short[]) {
+				short[] shortPixels = (short[])pixels;
+				
+				for (int i = 0; i < copy.length; i++)
+					copy[i] = shortPixels[i] & 0xffff;
+			}
+			else if (pixels instanceof byte[]) {
+				byte[] bytePixels = (byte[])pixels;
+				
+				for (int i = 0; i < copy.length; i++)
+					copy[i] = bytePixels[i] & 0xff;
+			}
+			else {
+				System.arraycopy((float[])pixels, 0, copy, 0, copy.length);
+			}
+			
+		}
+		else if (pixels instanceof short[]) {
+			
+			short[] shortPixels = (short[])pixels;
+			
+			for (int y = 0, offset = 0; y < height; y++) {
+				
+				double rowSum = 0;
+				int tableOffset = (y + 1) * tableWidth + 1;
+				
+				for (int x = 0; x < width; x++, offset++) {
+					copy[offset] = shortPixels[offset] & 0xffff;
+					rowSum += copy[offset];
+					table[tableOffset + x] = table[tableOffset + x - tableWidth] + rowSum;
+				}
+			}
+			
+		}
+		else if (pixels instanceof byte[]) {
+			
+			byte[] bytePixels = (byte[])pixels;
+			
+			for (int y = 0, offset = 0; y < height; y++) {
+				
+				double rowSum = 0;
+				int tableOffset = (y + 1) * tableWidth + 1;
+				
+				for (int x = 0; x < width; x++, offset++) {
+					copy[offset] = bytePixels[offset] & 0xff;
+					rowSum += copy[offset];
+					table[tableOffset + x] = table[tableOffset + x - tableWidth] + rowSum;
+				}
+			}
+			
+		}
+		else {
+			
+			float[] floatPixels = (float[])pixels;
+			
+			for (int y = 0, offset = 0; y < height; y++) {
+				
+				double rowSum = 0;
+				int tableOffset = (y + 1) * tableWidth + 1;
+				
+				for (int x = 0; x < width; x++, offset++) {
+					copy[offset] = floatPixels[offset];
+					rowSum += copy[offset];
+					table[tableOffset + x] = table[tableOffset + x - tableWidth] + rowSum;
+				}
+			}
+			
+		}
+	}
+	
+	/**
+	 * Sums the circle around each of the length pixels from offset on with the
+	 * kernel, the pixels the kernel leaves are summed here.
+	 */
+	private static void sum(DiscoidalAveragingKernel kernel, float[] pixels, int[] offsets, int offset, int length, float[] sums) {
+		
+		for (int i = kernel.sum(pixels, offsets, offset, length, sums); i < length; i++)
+			sums[i] = (float)getSum(pixels, offsets, offset + i);
+		
+	}
+	
+	private static double getSum(float[] pixels, int[] offsets, int offset) {
+		double sum = 0;
+		
+		for (int circleOffset: offsets)
+			sum += pixels[offset + circleOffset];
+		
+		return sum;
+	}
+	
+	private static double getSum(double[] table, int tableWidth, int[] rectangles, int x, int y) {
+		double sum = 0;
+		
+		for (int i = 0; i < rectangles.length; i += 4) {
+			int x0 = x + rectangles[i];
+			int y0 = (y + rectangles[i + 1]) * tableWidth;
+			int x1 = x + rectangles[i + 2] + 1;
+			int y1 = (y + rectangles[i + 3] + 1) * tableWidth;
+			
+			sum += table[y1 + x1] - table[y0 + x1] - table[y1 + x0] + table[y0 + x0];
+		}
+		
+		return sum;
+	}
+	
+	/**
+	 * Same as getSum, but the rectangles are first clipped to the image. The
+	 * sum is stored in result[0] and the number of pixels in result[1].
+	 */
+	private static void getClampedSum(double[] table, int width, int height, int[] rectangles, int x, int y, double[] result) {
+		int tableWidth = width + 1;
+		double sum = 0;
+		int pixels = 0;
+		
+		for (int i = 0; i < rectangles.length; i += 4) {
+			int x0 = Math.max(x + rectangles[i], 0);
+			int y0 = Math.max(y + rectangles[i + 1], 0);
+			int x1 = Math.min(x + rectangles[i + 2] + 1, width);
+			int y1 = Math.min(y + rectangles[i + 3] + 1, height);
+			
+			if (x0 < x1 && y0 < y1) {
+				sum += table[y1 * tableWidth + x1] - table[y0 * tableWidth + x1] - table[y1 * tableWidth + x0] + table[y0 * tableWidth + x0];
+				pixels += (x1 - x0) * (y1 - y0);
+			}
+		}
+		
+		result[0] = sum;
+		result[1] = pixels;
+	}
+	
+	/**
+	 * Same as getClampedSum, but the pixels of the clipped rectangles are
+	 * summed one by one, which is used when the summed-area table is spoiled.
+	 */
+	private static void getClampedSum(float[] pixels, int width, int height, int[] rectangles, int x, int y, double[] result) {
+		double sum = 0;
+		int count = 0;
+		
+		for (int i = 0; i < rectangles.length; i += 4) {
+			int x0 = Math.max(x + rectangles[i], 0);
+			int y0 = Math.max(y + rectangles[i + 1], 0);
+			int x1 = Math.min(x + rectangles[i + 2] + 1, width);
+			int y1 = Math.min(y + rectangles[i + 3] + 1, height);
+			
+			for (int py = y0; py < y1; py++) {
+				for (int px = x0, offset = py * width + x0; px < x1; px++, offset++)
+					sum += pixels[offset];
+			}
+			
+			if (x0 < x1 && y0 < y1)
+				count += (x1 - x0) * (y1 - y0);
+		}
+		
+		result[0] = sum;
+		result[1] = count;
+	}
+	
 	@Override
 	public void run(ImageProcessor ip) {
 		
-		ImageProcessor duplicate = ip.duplicate();
+		// the filter reads from its own copy of the pixels, so 32-bit images
+		// can be written to directly
+		if (ip.getPixels() instanceof float[]) {
+			filter(ip, (float[])ip.getPixels(), null);
+			return;
+		}
+		
+		Buffers buffers = this.buffers.get();
+		
+		if (buffers.output.length != ip.getPixelCount())
+			buffers.output = new float[ip.getPixelCount()];
+		
+		float[] output = buffers.output;
+		filter(ip, output, null);
+		
+		Rectangle roi = ip.getRoi();
+		
+		for (int y = roi.y; y < roi.y + roi.height; y++) {
+			for (int x = roi.x, offset = y * ip.getWidth() + roi.x; x < roi.x + roi.width; x++, offset++)
+				ip.setf(offset, output[offset]);
+		}
+		
+	}
+	
+	/**
+	 * Filters the pixels inside the roi of ip and stores the result in output,
+	 * which has the same size as the image. The image itself is not changed.
+	 * If statistics is not null, the number of pixels, the mean and the sum of
+	 * squared deviations from the mean (Welford) of the filtered pixels are
+	 * stored in it while each row is still in the cache.
+	 */
+	public void filter(ImageProcessor ip, float[] output, double[] statistics) {
 		
 		double innerMean;
 		double outerMean;
-		int innerPixels;
-		int outerPixels;
 		
-		int offset;
-		int width = ip.getWidth();
-		int count = ip.getPixelCount();
+		int height = ip.getHeight();
+		int tableWidth = width + 1;
+		
+		// the offsets are set up front (in the constructor, setup or the
+		// dialog), the stack threads share this filter and must not change them
+		if (innerOffsets == null || ip.getWidth() != width)
+			throw new IllegalArgumentException("the circle offsets are not set for an image width of " + ip.getWidth());
+		
+		// a circle is summed with the summed-area table only if that takes
+		// fewer lookups than visiting each of its pixels, without such a
+		// circle the table is not built at all
+		boolean isInnerTable = innerRectangles.length < innerOffsets.length;
+		boolean isOuterTable = outerRectangles.length < outerOffsets.length;
+		
+		Buffers buffers = this.buffers.get();
+		buffers.ensureCapacity(width, height, isInnerTable || isOuterTable);
+		
+		float[] pixels = buffers.pixels;
+		double[] table = isInnerTable || isOuterTable ? buffers.table : null;
+		copyPixels(ip.getPixels(), width, height, pixels, table);
+		
+		// frames with NaN or infinite pixels are filtered without the table,
+		// so such a pixel only affects the circles it is part of
+		if (table != null) {
+			
+			double total = table[table.length - 1];
+			
+			if (Double.isNaN(total) || Double.isInfinite(total)) {
+				table = null;
+				isInnerTable = false;
+				isOuterTable = false;
+			}
+			
+		}
 		
 		Rectangle roi = ip.getRoi();
+		int roiEnd = roi.x + roi.width;
+		
+		// the vector kernel sums the circles that are not summed with the
+		// table (usually the outer circle) for a whole row at once
+		boolean isVector = useVectorKernel && (useVectorKernelForFloat || !(ip.getPixels() instanceof float[]));
+		DiscoidalAveragingKernel kernel = isVector && (!isInnerTable || !isOuterTable) ? vectorKernel : null;
+		float[] innerSums = kernel != null && !isInnerTable ? buffers.innerSums : null;
+		float[] outerSums = kernel != null && !isOuterTable ? buffers.outerSums : null;
+		
+		long n = 0;
+		double mean = 0;
+		double m2 = 0;
 		
 		for (int y = roi.y; y < roi.y + roi.height; y++) {
 			
-			offset = y * width + roi.x;
+			// pixels in [from, to) have their circles completely inside the
+			// image, the pixels on either side are clipped at the border
+			int from = roiEnd;
+			int to = roiEnd;
 			
-			for (int x = roi.x; x < roi.x + roi.width; x++) {
-				
-				innerMean = 0;
-				outerMean = 0;
-				innerPixels = 0;
-				outerPixels = 0;
-				
-				for (int circleOffset: innerOffsets) {
-					circleOffset += offset;
-					
-					if (circleOffset >= 0 && circleOffset < count) {
-						innerMean += duplicate.getf(circleOffset);
-						innerPixels++;
-					}
-				}
-				
-				for (int circleOffset: outerOffsets) {
-					circleOffset += offset;
-					
-					if (circleOffset >= 0 && circleOffset < count) {
-						outerMean += duplicate.getf(circleOffset);
-						outerPixels++;
-					}
-				}
+			if (y >= radius && y < height - radius) {
+				from = Math.min(Math.max(roi.x, radius), roiEnd);
+				to = Math.max(Math.min(roiEnd, width - radius), from);
+			}
+			
+			int offset = y * width + from;
+			
+			if (innerSums != null)
+				sum(kernel, pixels, innerOffsets, offset, to - from, innerSums);
+			
+			if (outerSums != null)
+				sum(kernel, pixels, outerOffsets, offset, to - from, outerSums);
+			
+			for (int x = from, i = 0; x < to; x++, i++) {
 				
-				innerMean /= innerPixels;
-				outerMean /= outerPixels;
-				innerMean -= outerMean;
+				if (isInnerTable)
+					innerMean = getSum(table, tableWidth, innerRectangles, x, y);
+				else if (innerSums != null)
+					innerMean = innerSums[i];
+				else
+					innerMean = getSum(pixels, innerOffsets, offset);
 				
-				if (innerMean > 0)
-					ip.setf(offset, (float)innerMean);
+				if (isOuterTable)
+					outerMean = getSum(table, tableWidth, outerRectangles, x, y);
+				else if (outerSums != null)
+					outerMean = outerSums[i];
 				else
-					ip.setf(offset, 0);
+					outerMean = getSum(pixels, outerOffsets, offset);
 				
-				offset++;
+				output[offset++] = getMeanDifference(innerMean / innerOffsets.length, outerMean / outerOffsets.length);
+			}
+			
+			filterBorder(table, pixels, buffers, height, y, roi.x, from, output);
+			filterBorder(table, pixels, buffers, height, y, to, roiEnd, output);
+			
+			if (statistics != null) {
+				for (int i = y * width + roi.x; i < y * width + roiEnd; i++) {
+					double delta = output[i] - mean;
+					mean += delta / ++n;
+					m2 += delta * (output[i] - mean);
+				}
 			}
 		}
 		
+		if (statistics != null) {
+			statistics[0] = n;
+			statistics[1] = mean;
+			statistics[2] = m2;
+		}
+		
+	}
+	
+	/**
+	 * Filters the pixels in [from, to) of row y with clipped circles, using
+	 * the summed-area table or, if it is null, the pixels themselves.
+	 */
+	private void filterBorder(double[] table, float[] pixels, Buffers buffers, int height, int y, int from, int to, float[] output) {
+		
+		double[] inner = buffers.inner;
+		double[] outer = buffers.outer;
+		
+		for (int x = from; x < to; x++) {
+			
+			if (table != null) {
+				getClampedSum(table, width, height, innerRectangles, x, y, inner);
+				getClampedSum(table, width, height, outerRectangles, x, y, outer);
+			}
+			else {
+				getClampedSum(pixels, width, height, innerRectangles, x, y, inner);
+				getClampedSum(pixels, width, height, outerRectangles, x, y, outer);
+			}
+			
+			output[y * width + x] = getMeanDifference(inner[0] / inner[1], outer[0] / outer[1]);
+		}
+		
+	}
+	
+	private static float getMeanDifference(double innerMean, double outerMean) {
+		innerMean -= outerMean;
+		
+		if (innerMean > 0)
+			return (float)innerMean;
+		else
+			return 0;
 	}
 
 	@Override
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
 		
+		if (imp != null)
+			setCircleOffsets(imp.getWidth(), innerRadius, outerRadius);
+		
 		return flags;
 	}
 
@@ -0,0 +1,19 @@
+package process;
+
+/**
+ * Sums the pixels of a circle (the taps given by their offsets) for a row of
+ * pixels whose circles lie completely inside the image. Implementations may
+ * handle only part of the row, the remaining pixels are then summed by the
+ * scalar code in the discoidal averaging filter.
+ */
+interface DiscoidalAveragingKernel {
+	
+	/**
+	 * Sums the circle around each of the pixels offset, offset + 1, ... and
+	 * stores the sums in sums[0], sums[1], ...
+	 * 
+	 * @return the number of pixels that were summed
+	 */
+	public int sum(float[] pixels, int[] offsets, int offset, int length, float[] sums);
+	
+}
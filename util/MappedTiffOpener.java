@@ -0,0 +1,34 @@
+package util;
+
+import java.io.IOException;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+/**
+ * Opens an uncompressed (Big)TIFF file as a memory mapped virtual stack, see
+ * {@link MappedTiffStack}.
+ */
+public class MappedTiffOpener implements PlugIn {
+	
+	@Override
+	public void run(String arg) {
+		
+		OpenDialog dialog = new OpenDialog("Open Mapped TIFF", arg);
+		
+		if (dialog.getFileName() == null)
+			return;
+		
+		try {
+			MappedTiffStack stack = MappedTiffStack.open(dialog.getPath());
+			new ImagePlus(dialog.getFileName(), stack).show();
+		}
+		catch (IOException e) {
+			IJ.error("Open Mapped TIFF", e.getMessage());
+		}
+		
+	}
+	
+}
@@ -0,0 +1,469 @@
+package util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * A virtual stack of an uncompressed (Big)TIFF file that is memory mapped
+ * instead of read. Opening only reads the image file directories, the pixels
+ * of a frame are paged in by the operating system when the frame is accessed.
+ * getBuffer and getShortBuffer return views on the mapping without copying,
+ * getProcessor copies a single frame to the heap so that it can be used by
+ * any plugin (for example the streaming mode of the peak fitter).
+ *
+ * Supported are 8 and 16 bit unsigned and 32 bit float grayscale images stored
+ * in contiguous strips, as written by ImageJ, Micro-Manager and most cameras.
+ * Stacks of more than 4 GB saved by ImageJ, which only have a single image file
+ * directory, are supported as well.
+ */
+public class MappedTiffStack extends VirtualStack {
+	
+	// the file is mapped in chunks since a single mapping is limited to 2 GB
+	private static final long CHUNK_SIZE = 1L << 30;
+	
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int SAMPLE_FORMAT = 339;
+	
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final int frameBytes;
+	private final ByteOrder order;
+	private final long[] offsets;
+	private final MappedByteBuffer[] chunks;
+	
+	private MappedTiffStack(String directory, Layout layout, MappedByteBuffer[] chunks) {
+		super(layout.width, layout.height, null, directory);
+		
+		width = layout.width;
+		height = layout.height;
+		bitDepth = layout.bitDepth;
+		frameBytes = layout.frameBytes;
+		order = layout.order;
+		offsets = layout.offsets;
+		this.chunks = chunks;
+	}
+	
+	/**
+	 * Reads the layout of a TIFF file and maps it into memory.
+	 */
+	public static MappedTiffStack open(String path) throws IOException {
+		
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		
+		try {
+			
+			FileChannel channel = file.getChannel();
+			Layout layout = readLayout(channel);
+			
+			// frames are not necessarily stored in the order of the image file
+			// directories, so the mapping ends after the frame that is stored last
+			long end = 0;
+			
+			for (long offset: layout.offsets)
+				end = Math.max(end, offset + layout.frameBytes);
+			
+			if (end > channel.size())
+				throw new EOFException(path + " is truncated");
+			
+			// each chunk holds the frames that start inside it completely
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int)((end - 1) / CHUNK_SIZE) + 1];
+			
+			for (int i = 0; i < chunks.length; i++) {
+				long start = i * CHUNK_SIZE;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE + layout.frameBytes, end - start));
+			}
+			
+			// the mappings stay valid after the file is closed
+			return new MappedTiffStack(new File(path).getParent(), layout, chunks);
+		}
+		finally {
+			file.close();
+		}
+		
+	}
+	
+	/**
+	 * Returns a read only view on the pixels of frame n (starting at 1) in
+	 * the byte order of the file.
+	 */
+	public ByteBuffer getBuffer(int n) {
+		
+		long offset = offsets[n - 1];
+		int chunk = (int)(offset / CHUNK_SIZE);
+		int position = (int)(offset - chunk * CHUNK_SIZE);
+		
+		ByteBuffer buffer = chunks[chunk].duplicate();
+		buffer.position(position);
+		buffer.limit(position + frameBytes);
+		
+		return buffer.slice().order(order);
+	}
+	
+	/**
+	 * Returns a read only view on the pixels of frame n of a 16 bit stack.
+	 * The values are unsigned, use value & 0xffff.
+	 */
+	public ShortBuffer getShortBuffer(int n) {
+		
+		if (bitDepth != 16)
+			throw new IllegalStateException("not a 16 bit stack");
+		
+		return getBuffer(n).asShortBuffer();
+	}
+	
+	@Override
+	public Object getPixels(int n) {
+		
+		ByteBuffer buffer = getBuffer(n);
+		
+		switch (bitDepth) {
+		case 8:
+			byte[] bytePixels = new byte[width * height];
+			buffer.get(bytePixels);
+			return bytePixels;
+		case 16:
+			short[] shortPixels = new short[width * height];
+			buffer.asShortBuffer().get(shortPixels);
+			return shortPixels;
+		default:
+			float[] floatPixels = new float[width * height];
+			buffer.asFloatBuffer().get(floatPixels);
+			return floatPixels;
+		}
+		
+	}
+	
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		
+		Object pixels = getPixels(n);
+		
+		switch (bitDepth) {
+		case 8:
+			return new ByteProcessor(width, height, (byte[])pixels, null);
+		case 16:
+			return new ShortProcessor(width, height, (short[])pixels, null);
+		default:
+			return new FloatProcessor(width, height, (float[])pixels, null);
+		}
+		
+	}
+	
+	@Override
+	public void setPixels(Object pixels, int n) {
+		throw new UnsupportedOperationException("a mapped tiff stack is read only");
+	}
+	
+	@Override
+	public void deleteSlice(int n) {
+		throw new UnsupportedOperationException("a mapped tiff stack is read only");
+	}
+	
+	@Override
+	public int getSize() {
+		return offsets.length;
+	}
+	
+	@Override
+	public int getBitDepth() {
+		return bitDepth;
+	}
+	
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+	
+	private static class Layout {
+		
+		public int width;
+		public int height;
+		public int bitDepth;
+		public int frameBytes;
+		public ByteOrder order;
+		public long[] offsets;
+		
+	}
+	
+	/**
+	 * Walks through the image file directories and collects the offsets of
+	 * the frames.
+	 */
+	private static Layout readLayout(FileChannel channel) throws IOException {
+		
+		Layout layout = new Layout();
+		ByteBuffer header = read(channel, 0, 16, ByteOrder.BIG_ENDIAN);
+		
+		switch (header.getShort(0)) {
+		case 0x4949:
+			layout.order = ByteOrder.LITTLE_ENDIAN;
+			break;
+		case 0x4d4d:
+			layout.order = ByteOrder.BIG_ENDIAN;
+			break;
+		default:
+			throw new IOException("not a tiff file");
+		}
+		
+		header.order(layout.order);
+		
+		int version = header.getShort(2);
+		boolean isBig = version == 43;
+		
+		if (version != 42 && !isBig)
+			throw new IOException("unknown tiff version " + version);
+		
+		int countSize = isBig ? 8 : 2;
+		int entrySize = isBig ? 20 : 12;
+		int pointerSize = isBig ? 8 : 4;
+		long ifd = isBig ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+		
+		List<Long> offsets = new ArrayList<Long>();
+		String description = null;
+		
+		while (ifd != 0) {
+			
+			ByteBuffer count = read(channel, ifd, countSize, layout.order);
+			int entries = (int)(isBig ? count.getLong(0) : count.getShort(0) & 0xffff);
+			ByteBuffer directory = read(channel, ifd + countSize, entries * entrySize + pointerSize, layout.order);
+			
+			int width = 0;
+			int height = 0;
+			int bitDepth = 1;
+			int sampleFormat = 1;
+			long[] stripOffsets = null;
+			long[] stripByteCounts = null;
+			
+			for (int i = 0; i < entries; i++) {
+				
+				int entry = i * entrySize;
+				int tag = directory.getShort(entry) & 0xffff;
+				
+				switch (tag) {
+				case IMAGE_WIDTH:
+					width = (int)getValues(channel, directory, entry, isBig)[0];
+					break;
+				case IMAGE_LENGTH:
+					height = (int)getValues(channel, directory, entry, isBig)[0];
+					break;
+				case BITS_PER_SAMPLE:
+					bitDepth = (int)getValues(channel, directory, entry, isBig)[0];
+					break;
+				case SAMPLE_FORMAT:
+					sampleFormat = (int)getValues(channel, directory, entry, isBig)[0];
+					break;
+				case COMPRESSION:
+					if (getValues(channel, directory, entry, isBig)[0] != 1)
+						throw new IOException("compressed tiff files can not be mapped");
+					break;
+				case SAMPLES_PER_PIXEL:
+					if (getValues(channel, directory, entry, isBig)[0] != 1)
+						throw new IOException("only grayscale tiff files can be mapped");
+					break;
+				case STRIP_OFFSETS:
+					stripOffsets = getValues(channel, directory, entry, isBig);
+					break;
+				case STRIP_BYTE_COUNTS:
+					stripByteCounts = getValues(channel, directory, entry, isBig);
+					break;
+				case IMAGE_DESCRIPTION:
+					if (offsets.isEmpty())
+						description = toString(getValues(channel, directory, entry, isBig));
+					break;
+				}
+				
+			}
+			
+			if (stripOffsets == null || stripByteCounts == null || stripOffsets.length != stripByteCounts.length)
+				throw new IOException("frame " + (offsets.size() + 1) + " has no strips");
+			
+			// the strips of a frame should follow each other for a frame to be viewed as a whole
+			long stripBytes = stripByteCounts[0];
+			
+			for (int i = 1; i < stripOffsets.length; i++) {
+				
+				if (stripOffsets[i] != stripOffsets[i - 1] + stripByteCounts[i - 1])
+					throw new IOException("frame " + (offsets.size() + 1) + " is not stored contiguously");
+				
+				stripBytes += stripByteCounts[i];
+			}
+			
+			if (offsets.isEmpty()) {
+				
+				if (!(bitDepth == 8 && sampleFormat == 1) && !(bitDepth == 16 && sampleFormat == 1) && !(bitDepth == 32 && sampleFormat == 3))
+					throw new IOException("unsupported pixel type, " + bitDepth + " bit with sample format " + sampleFormat);
+				
+				layout.width = width;
+				layout.height = height;
+				layout.bitDepth = bitDepth;
+				layout.frameBytes = width * height * (bitDepth / 8);
+			}
+			else if (width != layout.width || height != layout.height || bitDepth != layout.bitDepth) {
+				throw new IOException("frame " + (offsets.size() + 1) + " differs from the first frame");
+			}
+			
+			if (stripBytes < layout.frameBytes)
+				throw new IOException("frame " + (offsets.size() + 1) + " has " + stripBytes + " bytes instead of " + layout.frameBytes);
+			
+			offsets.add(stripOffsets[0]);
+			
+			int next = entries * entrySize;
+			ifd = isBig ? directory.getLong(next) : directory.getInt(next) & 0xffffffffL;
+		}
+		
+		if (offsets.isEmpty())
+			throw new IOException("tiff file without images");
+		
+		// ImageJ only writes the first image file directory of stacks larger than 4 GB
+		int images = offsets.size() == 1 ? getImageJImages(description) : 0;
+		
+		for (int i = 1; i < images; i++) {
+			
+			long offset = offsets.get(0) + (long)i * layout.frameBytes;
+			
+			if (offset + layout.frameBytes > channel.size())
+				break;
+			
+			offsets.add(offset);
+		}
+		
+		layout.offsets = new long[offsets.size()];
+		
+		for (int i = 0; i < layout.offsets.length; i++)
+			layout.offsets[i] = offsets.get(i);
+		
+		return layout;
+	}
+	
+	/**
+	 * Returns the value of images= in an ImageJ image description, or 0.
+	 */
+	private static int getImageJImages(String description) {
+		
+		if (description == null || !description.startsWith("ImageJ"))
+			return 0;
+		
+		for (String line: description.split("\n")) {
+			
+			if (line.startsWith("images=")) {
+				try {
+					return Integer.parseInt(line.substring(7).trim());
+				}
+				catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+			
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Returns the values of an image file directory entry. Values that do not
+	 * fit in the entry itself are read from the offset in the entry.
+	 */
+	private static long[] getValues(FileChannel channel, ByteBuffer directory, int entry, boolean isBig) throws IOException {
+		
+		int type = directory.getShort(entry + 2) & 0xffff;
+		int count = (int)(isBig ? directory.getLong(entry + 4) : directory.getInt(entry + 4) & 0xffffffffL);
+		int valueOffset = entry + (isBig ? 12 : 8);
+		int size;
+		
+		switch (type) {
+		case 1:		// byte
+		case 2:		// ascii
+			size = 1;
+			break;
+		case 3:		// short
+			size = 2;
+			break;
+		case 4:		// long
+			size = 4;
+			break;
+		case 16:	// long8 (BigTIFF)
+			size = 8;
+			break;
+		default:
+			throw new IOException("unsupported tiff field type " + type);
+		}
+		
+		ByteBuffer values = directory;
+		int base = valueOffset;
+		
+		if ((long)count * size > (isBig ? 8 : 4)) {
+			long offset = isBig ? directory.getLong(valueOffset) : directory.getInt(valueOffset) & 0xffffffffL;
+			values = read(channel, offset, count * size, directory.order());
+			base = 0;
+		}
+		
+		long[] result = new long[count];
+		
+		for (int i = 0; i < count; i++) {
+			
+			switch (size) {
+			case 1:
+				result[i] = values.get(base + i) & 0xff;
+				break;
+			case 2:
+				result[i] = values.getShort(base + i * 2) & 0xffff;
+				break;
+			case 4:
+				result[i] = values.getInt(base + i * 4) & 0xffffffffL;
+				break;
+			default:
+				result[i] = values.getLong(base + i * 8);
+				break;
+			}
+			
+		}
+		
+		return result;
+	}
+	
+	private static String toString(long[] characters) {
+		
+		StringBuilder builder = new StringBuilder();
+		
+		for (int i = 0; i < characters.length && characters[i] != 0; i++)
+			builder.append((char)characters[i]);
+		
+		return builder.toString();
+	}
+	
+	private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("unexpected end of tiff file");
+		}
+		
+		return buffer;
+	}
+	
+}
@@ -0,0 +1,72 @@
+package util;
+
+import java.util.Properties;
+
+import ij.Prefs;
+
+/**
+ * The settings of the plugins. Parameters that are set here, for example
+ * from the parameter file of the batch runner, take precedence over the
+ * ImageJ properties (IJ_Props.txt) and preferences, so that a batch can be
+ * run with other settings without changing those of ImageJ. Keys that are
+ * not set are looked up with the Prefs method of the same name.
+ */
+public class Parameters {
+	
+	private static final Properties parameters = new Properties();
+	
+	private Parameters() {
+		
+	}
+	
+	/**
+	 * Sets all parameters, surrounding white space of the values is removed.
+	 */
+	public static void setAll(Properties properties) {
+		for (String key: properties.stringPropertyNames())
+			parameters.setProperty(key, properties.getProperty(key).trim());
+	}
+	
+	public static String get(String key, String defaultValue) {
+		String value = parameters.getProperty(key);
+		return value != null ? value : Prefs.get(key, defaultValue);
+	}
+	
+	public static int getInt(String key, int defaultValue) {
+		
+		String value = parameters.getProperty(key);
+		
+		if (value == null)
+			return Prefs.getInt(key, defaultValue);
+		
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+		
+	}
+	
+	public static double getDouble(String key, double defaultValue) {
+		
+		String value = parameters.getProperty(key);
+		
+		if (value == null)
+			return Prefs.getDouble(key, defaultValue);
+		
+		try {
+			return Double.parseDouble(value);
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+		
+	}
+	
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = parameters.getProperty(key);
+		return value != null ? value.equals("true") : Prefs.getBoolean(key, defaultValue);
+	}
+	
+}
@@ -5,6 +5,9 @@ import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
+import analyze.LocalizationTable;
+import analyze.LocalizationTable.DoubleColumn;
+import analyze.LocalizationTable.IntColumn;
 
 public class ResultsTableClustering implements PlugIn {
 	
@@ -27,14 +30,31 @@ public class ResultsTableClustering implements PlugIn {
 		threshold_distance = dialog.getNextNumber();
 		threshold_size = (int)dialog.getNextNumber();
 		
-		int n = table.getCounter();
+		LocalizationTable localizations = LocalizationTable.fromResultsTable(table);
+		cluster(localizations);
+		localizations.toResultsTable(table);
+		
+		table.updateResults();
+		
+	}
+	
+	/**
+	 * Clusters the peaks of a table and adds the cluster, cluster_x,
+	 * cluster_y and cluster_n columns for peaks that belong to a cluster.
+	 */
+	public void cluster(LocalizationTable table) {
+		
+		DoubleColumn xs = table.getDoubleColumn("x");
+		DoubleColumn ys = table.getDoubleColumn("y");
+		
+		int n = table.size();
 		double[] cluster_x = new double[n];
 		double[] cluster_y = new double[n];
 		int[] cluster_n = new int[n];
 		
 		for (int row = 0; row < n; row++) {
-			cluster_x[row] = table.getValue("x", row);
-			cluster_y[row] = table.getValue("y", row);
+			cluster_x[row] = xs.get(row);
+			cluster_y[row] = ys.get(row);
 			cluster_n[row] = 1;
 		}
 		
@@ -107,11 +127,16 @@ public class ResultsTableClustering implements PlugIn {
 			}
 		}
 		
-		// add results to the results table
-		for (int row = 0; row < table.getCounter(); row++) {
+		// add results to the table
+		IntColumn clusters = null;
+		DoubleColumn clusterXs = null;
+		DoubleColumn clusterYs = null;
+		IntColumn clusterNs = null;
+		
+		for (int row = 0; row < table.size(); row++) {
 			
-			double x1 = table.getValue("x", row);
-			double y1 = table.getValue("y", row);
+			double x1 = xs.get(row);
+			double y1 = ys.get(row);
 			double min_distance = threshold_distance;
 			int cluster = -1;
 			
@@ -131,16 +156,23 @@ public class ResultsTableClustering implements PlugIn {
 			}
 			
 			if (cluster >= 0) {
-				table.setValue("cluster", row, cluster);
-				table.setValue("cluster_x", row, cluster_x[cluster] / cluster_n[cluster]);
-				table.setValue("cluster_y", row, cluster_x[cluster] / cluster_n[cluster]);
-				table.setValue("cluster_n", row, cluster_n[cluster]);
+				
+				// only add the columns when there is at least one cluster
+				if (clusters == null) {
+					clusters = table.addIntColumn("cluster");
+					clusterXs = table.addDoubleColumn("cluster_x");
+					clusterYs = table.addDoubleColumn("cluster_y");
+					clusterNs = table.addIntColumn("cluster_n");
+				}
+				
+				clusters.set(row, cluster);
+				clusterXs.set(row, cluster_x[cluster] / cluster_n[cluster]);
+				clusterYs.set(row, cluster_x[cluster] / cluster_n[cluster]);
+				clusterNs.set(row, cluster_n[cluster]);
 			}
 			
 		}
 		
-		table.updateResults();
-		
 	}
 
 }
@@ -0,0 +1,75 @@
+package util;
+
+import java.io.IOException;
+
+import analyze.LocalizationFile;
+import analyze.LocalizationTable;
+import ij.IJ;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+/**
+ * Saves the results table as a binary localization file ("save") or replaces
+ * the results table by the contents of a localization file ("open"), see
+ * {@link LocalizationFile}. Opening copies every column into the results
+ * table, plugins that only need some of the columns of a large file (such as
+ * the PALM reconstructor) can read those directly from the file instead.
+ */
+public class ResultsTableFile implements PlugIn {
+	
+	@Override
+	public void run(String arg) {
+		
+		try {
+			
+			if (arg.equals("save"))
+				save();
+			else
+				open();
+			
+		}
+		catch (IOException e) {
+			IJ.error("Localization File", e.getMessage());
+		}
+		
+	}
+	
+	private void save() throws IOException {
+		
+		ResultsTable table = Analyzer.getResultsTable();
+		
+		if (table == null || table.getCounter() == 0) {
+			IJ.error("No results table!");
+			return;
+		}
+		
+		SaveDialog dialog = new SaveDialog("Save Localizations", "localizations", ".loc");
+		
+		if (dialog.getFileName() == null)
+			return;
+		
+		LocalizationFile.write(LocalizationTable.fromResultsTable(table), dialog.getDirectory() + dialog.getFileName());
+	}
+	
+	private void open() throws IOException {
+		
+		OpenDialog dialog = new OpenDialog("Open Localizations", null);
+		
+		if (dialog.getFileName() == null)
+			return;
+		
+		ResultsTable table = Analyzer.getResultsTable();
+		
+		if (table == null) {
+			table = new ResultsTable();
+			Analyzer.setResultsTable(table);
+		}
+		
+		LocalizationFile.readAll(dialog.getPath()).toResultsTable(table);
+		table.show("Results");
+	}
+	
+}
@@ -0,0 +1,43 @@
+package process;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Discoidal averaging kernel that uses the vector API to sum the circles of
+ * as many pixels at once as the processor allows (8 pixels with AVX2, 16
+ * pixels with AVX-512). This class needs the jdk.incubator.vector module (Java
+ * 16 or later), so it lives in the separate vector source root and is only
+ * compiled when that root is added to the build with --add-modules
+ * jdk.incubator.vector (see the README). Without this class, or when ImageJ is
+ * not started with the module, the discoidal averaging filter uses its scalar
+ * code.
+ * 
+ * The pixels are summed in single precision. Sums of 8-bit and 16-bit pixels
+ * are exact as long as they stay below 2^24 (up to 256 taps of 16-bit pixels),
+ * but for 32-bit images the result can differ slightly from the scalar code,
+ * which sums in double precision.
+ */
+class VectorDiscoidalAveragingKernel implements DiscoidalAveragingKernel {
+	
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	
+	@Override
+	public int sum(float[] pixels, int[] offsets, int offset, int length, float[] sums) {
+		
+		int n = SPECIES.loopBound(length);
+		
+		for (int i = 0; i < n; i += SPECIES.length()) {
+			
+			FloatVector sum = FloatVector.zero(SPECIES);
+			
+			for (int circleOffset: offsets)
+				sum = sum.add(FloatVector.fromArray(SPECIES, pixels, offset + i + circleOffset));
+			
+			sum.intoArray(sums, i);
+		}
+		
+		return n;
+	}
+	
+}